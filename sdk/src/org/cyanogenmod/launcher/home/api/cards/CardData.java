@@ -8,19 +8,33 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LongSparseArray;
 import org.cyanogenmod.launcher.home.api.provider.CmHomeContentProvider;
 import org.cyanogenmod.launcher.home.api.provider.CmHomeContract;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.URISyntaxException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
 
 /**
  * <p>CardData contains data representing a single card that will appear in CM Home. This class
@@ -47,6 +61,9 @@ import java.util.List;
  * To remove any card that is currently published, call
  * {@link #unpublish(android.content.Context)} on that card.</p>
  *
+ * <p>Republishing a card only writes the fields that were set since it was last published.
+ * To change a field, always call its setter, even for an Intent that was already set.</p>
+ *
  * <p>CardData also contains a list of related images, retrievable in {@link #getImages()}. Any
  * images that have been added will be published when
  * {@link #publish(android.content.Context)} is called on a CardData object.
@@ -54,8 +71,9 @@ import java.util.List;
  * @see org.cyanogenmod.launcher.home.api.cards.CardDataImage
  * </p>
  */
-public class CardData extends PublishableCard {
+public class CardData extends PublishableCard implements Cloneable {
     private static final String TAG = "CardData";
+    private static final String LEGACY_DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
     /**
      * Store a reference to the Database Contract that represents this object,
      * so that the superclass can figure out what columns to write.
@@ -63,11 +81,33 @@ public class CardData extends PublishableCard {
     private static final CmHomeContract.ICmHomeContract sContract =
             new CmHomeContract.CardDataContract();
 
+    // Marks a time that has not been set, stored in place of a null Date
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    // Fields written to the ContentProvider, tracked in mChangedFields
+    private static final int FIELD_INTERNAL_ID          = 1;
+    private static final int FIELD_REASON               = 1 << 1;
+    private static final int FIELD_CONTENT_CREATED      = 1 << 2;
+    private static final int FIELD_CONTENT_SOURCE_IMAGE = 1 << 3;
+    private static final int FIELD_AVATAR_IMAGE         = 1 << 4;
+    private static final int FIELD_TITLE                = 1 << 5;
+    private static final int FIELD_SMALL_TEXT           = 1 << 6;
+    private static final int FIELD_BODY_TEXT            = 1 << 7;
+    private static final int FIELD_CATEGORY             = 1 << 8;
+    private static final int FIELD_CARD_CLICK_INTENT    = 1 << 9;
+    private static final int FIELD_ACTION_1_TEXT        = 1 << 10;
+    private static final int FIELD_ACTION_1_INTENT      = 1 << 11;
+    private static final int FIELD_ACTION_2_TEXT        = 1 << 12;
+    private static final int FIELD_ACTION_2_INTENT      = 1 << 13;
+    private static final int FIELD_PRIORITY             = 1 << 14;
+    private static final int ALL_FIELDS                 = (1 << 15) - 1;
+
     private String mInternalId;
     private String mReasonText;
-    private Date   mContentCreatedDate;
-    private Date   mCreatedDate;
-    private Date   mLastModifiedDate;
+    // Times in milliseconds since the epoch, or NO_TIME
+    private long   mContentCreatedTime = NO_TIME;
+    private long   mCreatedTime        = NO_TIME;
+    private long   mLastModifiedTime   = NO_TIME;
 
     // Only one of these fields will be assigned at publish time
     private Uri                   mContentSourceImageUri;
@@ -82,13 +122,25 @@ public class CardData extends PublishableCard {
     private String mSmallText;
     private String mBodyText;
     private String mCategory;
-    private Intent mCardClickIntent;
+    // Volatile, as they may be parsed lazily on any thread reading a card shared by CM Home
+    private volatile Intent mCardClickIntent;
     private String mAction1Text;
-    private Intent mAction1Intent;
+    private volatile Intent mAction1Intent;
     private String mAction2Text;
-    private Intent mAction2Intent;
+    private volatile Intent mAction2Intent;
+    // Intent Uris read from the database, parsed into the Intents above only when first needed.
+    // Parsing leaves them in place, so that readers on other threads can always use them.
+    private String mCardClickIntentUri;
+    private String mAction1IntentUri;
+    private String mAction2IntentUri;
     private Priority mPriority = Priority.MID;
 
+    /**
+     * The FIELD_ flags of the fields set since the row of this card was last written, so that
+     * an update only needs to write those columns. Guarded by this.
+     */
+    private int mChangedFields = ALL_FIELDS;
+
     /**
      * The priority of a Card. Applications can report the priority of a card to hint to CM
      * Home where it should appear in the list of cards. There are three possibilities for
@@ -135,12 +187,30 @@ public class CardData extends PublishableCard {
     }
 
     /**
-     * All associated CardDataImages for this CardData.
+     * All associated CardDataImages for this CardData, in the order they were added. Each image
+     * is stored under a key of its own, which it keeps while it is linked to this card, even
+     * once it is published and has an ID. An image replacing another one takes over its key,
+     * and so its position. Guarded by itself.
      */
-    private List<CardDataImage> mImages = new ArrayList<CardDataImage>();
+    private LinkedHashMap<Long, CardDataImage> mImages = new LinkedHashMap<Long, CardDataImage>();
+    // CardDataImage -> its key in mImages, for removing images without scanning mImages
+    private IdentityHashMap<CardDataImage, Long> mImageKeys =
+            new IdentityHashMap<CardDataImage, Long>();
+    private long                                 mNextImageKey;
+    // The images of mImages as returned by getImages(), null if they changed since
+    private List<CardDataImage>                  mImageList;
 
     /**
-     * A list of images that have been removed from the card
+     * Image ID -> key in mImages, for looking up images by their ID without scanning mImages.
+     * Images without an ID when they are added are indexed once they have one. Guarded by
+     * mImages.
+     */
+    private LongSparseArray<Long> mImageIndex = new LongSparseArray<Long>();
+    private boolean               mImageIndexStale;
+
+    /**
+     * Images that have been removed from the card and must still be unpublished. Each image
+     * is dropped once its removal has been sent to CM Home. Guarded by mImages.
      */
     private Set<CardDataImage> mRemovedImages = new HashSet<CardDataImage>();
 
@@ -169,7 +239,7 @@ public class CardData extends PublishableCard {
         CardDataImage image = new CardDataImage(this);
         image.setImage(uri);
         synchronized (mImages) {
-            mImages.add(image);
+            linkImage(image);
         }
     }
 
@@ -180,22 +250,23 @@ public class CardData extends PublishableCard {
      * @param newImage The CardDataImage instance to add or update.
      */
     public void addOrUpdateCardDataImage(CardDataImage newImage) {
-        CardDataImage matchingImage = null;
         synchronized (mImages) {
-            for (CardDataImage image : mImages) {
-                if (image.getGlobalId().equals(newImage.getGlobalId())) {
-                    matchingImage = image;
-                    break;
-                }
-            }
-
-            // Remove the old one, if it was found, it will be replaced
-            if (matchingImage != null) {
-                mImages.remove(matchingImage);
+            CardDataImage matchingImage = findImage(newImage.getId());
+
+            // Replace the old one in place, if it was found
+            if (matchingImage == null) {
+                linkImage(newImage);
+            } else if (matchingImage != newImage) {
+                unlinkImage(newImage);
+                Long key = mImageKeys.remove(matchingImage);
+                unindexImage(matchingImage, key);
                 mRemovedImages.add(matchingImage);
-            }
 
-            mImages.add(newImage);
+                mImages.put(key, newImage);
+                mImageKeys.put(newImage, key);
+                indexImage(newImage, key);
+                mImageList = null;
+            }
         }
     }
 
@@ -208,7 +279,10 @@ public class CardData extends PublishableCard {
      *                    instances.
      */
     public void setInternalId(String internalId) {
-        mInternalId = internalId;
+        if (!TextUtils.equals(mInternalId, internalId)) {
+            mInternalId = internalId;
+            markChanged(FIELD_INTERNAL_ID);
+        }
     }
 
     /**
@@ -221,22 +295,55 @@ public class CardData extends PublishableCard {
     }
 
     /**
-     * Sets the created date for this CardData. To be used internally as the actual creation date
+     * Sets the created time for this CardData. To be used internally as the actual creation time
      * should be enforced here.
-     * @param date The actual date that this CardData was created.
+     * @param time The actual time that this CardData was created, in milliseconds since the
+     *             epoch.
      */
-    private void setCreatedDate(Date date) {
-        mCreatedDate = date;
+    private void setCreatedTime(long time) {
+        mCreatedTime = time;
     }
 
     /**
-     * Sets the modified date for this CardData. To be used internally as the most recent
-     * modified date as reported by the SQLite Database. A database trigger will set this for all
+     * Sets the modified time for this CardData. To be used internally as the most recent
+     * modified time as reported by the SQLite Database. A database trigger will set this for all
      * modified rows, and this value will be passed here.
-     * @param date The actual date that this CardData was created.
+     * @param time The actual time that this CardData was modified, in milliseconds since the
+     *             epoch.
      */
-    private void setLastModifiedDate(Date date) {
-        mLastModifiedDate = date;
+    private void setLastModifiedTime(long time) {
+        mLastModifiedTime = time;
+    }
+
+    private static Date toDate(long time) {
+        return time != NO_TIME ? new Date(time) : null;
+    }
+
+    private static long toTime(Date date) {
+        return date != null ? date.getTime() : NO_TIME;
+    }
+
+    private static boolean equalUris(Uri a, Uri b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private synchronized void markChanged(int fields) {
+        mChangedFields |= fields;
+    }
+
+    @Override
+    ContentValues takeChangedContentValues() {
+        int changedFields;
+        synchronized (this) {
+            changedFields = mChangedFields;
+            mChangedFields = 0;
+        }
+        return getContentValues(changedFields, true);
+    }
+
+    @Override
+    void markAllContentChanged() {
+        markChanged(ALL_FIELDS);
     }
 
     /**
@@ -249,7 +356,10 @@ public class CardData extends PublishableCard {
      * @param image A CardDataImage to add to this CardData.
      */
     public void addCardDataImage(CardDataImage image) {
-        mImages.add(image);
+        synchronized (mImages) {
+            linkImage(image);
+            mRemovedImages.remove(image);
+        }
     }
 
     /**
@@ -259,11 +369,13 @@ public class CardData extends PublishableCard {
      */
     public void clearImages() {
         synchronized (mImages) {
-            for (CardDataImage image : mImages) {
-                mRemovedImages.add(image);
-            }
+            mRemovedImages.addAll(mImages.values());
 
             mImages.clear();
+            mImageKeys.clear();
+            mImageList = null;
+            mImageIndex.clear();
+            mImageIndexStale = false;
         }
     }
 
@@ -273,10 +385,9 @@ public class CardData extends PublishableCard {
      * @param image The CardDataImage to remove from this CardData.
      */
     public void removeCardDataImage(CardDataImage image) {
-        mRemovedImages.add(image);
-
         synchronized (mImages) {
-            mImages.remove(image);
+            mRemovedImages.add(image);
+            unlinkImage(image);
         }
     }
 
@@ -286,27 +397,158 @@ public class CardData extends PublishableCard {
      * @param imageGlobalId The global ID of the CardDataImage to remove.
      */
     public void removeCardDataImage(String imageGlobalId) {
-        CardDataImage theImage = null;
+        long imageId;
+        try {
+            imageId = Long.parseLong(imageGlobalId.substring(imageGlobalId.lastIndexOf('/') + 1));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Unable to remove CardDataImage with invalid global ID: " + imageGlobalId);
+            return;
+        }
 
         synchronized (mImages) {
-            for (CardDataImage image : mImages) {
-                if (imageGlobalId.equals(image.getGlobalId())) {
-                    theImage = image;
-                }
+            CardDataImage theImage = findImage(imageId);
+            // IDs are only unique within an authority, the authority has to match as well
+            if (theImage != null && imageGlobalId.equals(theImage.getGlobalId())) {
+                unlinkImage(theImage);
             }
+        }
+    }
 
+    /**
+     * Removes a CardDataImage from this CardData, if it is currently linked to this CardData.
+     * @param imageId The ID of the CardDataImage to remove.
+     */
+    public void removeCardDataImage(long imageId) {
+        synchronized (mImages) {
+            CardDataImage theImage = findImage(imageId);
             if (theImage != null) {
-                mImages.remove(theImage);
+                unlinkImage(theImage);
             }
         }
     }
 
+    /**
+     * Finds a linked image by its ID. Must be called while holding the lock on mImages.
+     * @param imageId The ID of the image, images that are not yet published have none.
+     * @return The image with the given ID, or null if there is none.
+     */
+    private CardDataImage findImage(long imageId) {
+        if (imageId == -1) {
+            return null;
+        }
+
+        CardDataImage image = getIndexedImage(imageId);
+        if ((image == null || image.getId() != imageId) && mImageIndexStale) {
+            // Images may have been published since they were added, index them now
+            rebuildImageIndex();
+            image = getIndexedImage(imageId);
+        }
+        return image != null && image.getId() == imageId ? image : null;
+    }
+
+    private CardDataImage getIndexedImage(long imageId) {
+        Long key = mImageIndex.get(imageId);
+        return key != null ? mImages.get(key) : null;
+    }
+
+    /**
+     * Adds an image at the end of mImages, unless it is linked already. Must be called while
+     * holding the lock on mImages.
+     */
+    private void linkImage(CardDataImage image) {
+        if (mImageKeys.containsKey(image)) {
+            return;
+        }
+
+        Long key = mNextImageKey++;
+        mImages.put(key, image);
+        mImageKeys.put(image, key);
+        indexImage(image, key);
+        mImageList = null;
+    }
+
+    /**
+     * Removes an image from mImages, if it is linked. Must be called while holding the lock on
+     * mImages.
+     */
+    private void unlinkImage(CardDataImage image) {
+        Long key = mImageKeys.remove(image);
+        if (key != null) {
+            mImages.remove(key);
+            unindexImage(image, key);
+            mImageList = null;
+        }
+    }
+
+    private void indexImage(CardDataImage image, Long key) {
+        if (image.getId() == -1) {
+            mImageIndexStale = true;
+        } else {
+            mImageIndex.put(image.getId(), key);
+        }
+    }
+
+    private void unindexImage(CardDataImage image, Long key) {
+        if (key.equals(mImageIndex.get(image.getId()))) {
+            mImageIndex.remove(image.getId());
+        }
+    }
+
+    private void rebuildImageIndex() {
+        mImageIndex.clear();
+        mImageIndexStale = false;
+        for (Map.Entry<Long, CardDataImage> entry : mImages.entrySet()) {
+            indexImage(entry.getValue(), entry.getKey());
+        }
+    }
+
+    /**
+     * @hide
+     *
+     * Creates a copy of this CardData that shares all of its values, but has its own list of
+     * images. Used by CM Home to change the images of a card without modifying an instance
+     * that may be read on another thread.
+     * @return A copy of this CardData.
+     */
+    public CardData copy() {
+        CardData copy;
+        try {
+            copy = (CardData) clone();
+        } catch (CloneNotSupportedException e) {
+            // Not possible, CardData is Cloneable
+            throw new AssertionError(e);
+        }
+        synchronized (mImages) {
+            copy.mImages = new LinkedHashMap<Long, CardDataImage>(mImages);
+            copy.mImageKeys = new IdentityHashMap<CardDataImage, Long>(mImageKeys);
+            copy.mImageIndex = mImageIndex.clone();
+        }
+        copy.mRemovedImages = new HashSet<CardDataImage>();
+        return copy;
+    }
+
+    /**
+     * @return True if the given CardDataImage instance is linked to this CardData.
+     */
+    boolean hasImage(CardDataImage image) {
+        synchronized (mImages) {
+            return mImageKeys.containsKey(image);
+        }
+    }
+
     /**
      * Retrieve a List of all CardDataImages that are linked to this CardData.
-     * @return A list of CardDataImages that are linked to this CardData.
+     * @return An unmodifiable list of the CardDataImages that are linked to this CardData. Images
+     *         added or removed later do not change a list that was already returned.
      */
     public List<CardDataImage> getImages() {
-        return mImages;
+        synchronized (mImages) {
+            if (mImageList == null) {
+                mImageList = Collections.unmodifiableList(
+                        new ArrayList<CardDataImage>(mImages.values()));
+            }
+            return mImageList;
+        }
     }
 
     /**
@@ -317,7 +559,18 @@ public class CardData extends PublishableCard {
      * @return A {@link java.util.Date} with the time that this CardData was published.
      */
     public Date getCreatedDate() {
-        return mCreatedDate;
+        return toDate(mCreatedTime);
+    }
+
+    /**
+     * Retrieves the time that this CardData was originally published, without allocating a
+     * {@link java.util.Date}.
+     * @see org.cyanogenmod.launcher.home.api.cards.CardData#getCreatedDate()
+     * @return The time in milliseconds since the epoch, or 0 if this CardData was never
+     *         published.
+     */
+    public long getCreatedTime() {
+        return mCreatedTime != NO_TIME ? mCreatedTime : 0;
     }
 
     /**
@@ -340,7 +593,10 @@ public class CardData extends PublishableCard {
      * @param reason A String describing the reason this card is displayed.
      */
     public void setReasonText(String reason) {
-        this.mReasonText = reason;
+        if (!TextUtils.equals(mReasonText, reason)) {
+            this.mReasonText = reason;
+            markChanged(FIELD_REASON);
+        }
     }
 
     /**
@@ -349,7 +605,17 @@ public class CardData extends PublishableCard {
      * @return A {@link java.util.Date} representing when this content was created.
      */
     public Date getContentCreatedDate() {
-        return mContentCreatedDate;
+        return toDate(mContentCreatedTime);
+    }
+
+    /**
+     * Retrieves the currently set Content Created time, without allocating a
+     * {@link java.util.Date}.
+     * @see org.cyanogenmod.launcher.home.api.cards.CardData#setContentCreatedTime(long)
+     * @return The time in milliseconds since the epoch, or 0 if it is not set.
+     */
+    public long getContentCreatedTime() {
+        return mContentCreatedTime != NO_TIME ? mContentCreatedTime : 0;
     }
 
     /**
@@ -365,7 +631,20 @@ public class CardData extends PublishableCard {
      * @param contentCreatedDate The Date that this content was created.
      */
     public void setContentCreatedDate(Date contentCreatedDate) {
-        this.mContentCreatedDate = contentCreatedDate;
+        setContentCreatedTime(toTime(contentCreatedDate));
+    }
+
+    /**
+     * Sets the time that this content was created.
+     * @see org.cyanogenmod.launcher.home.api.cards.CardData#setContentCreatedDate(Date)
+     * @param contentCreatedTime The time that this content was created, in milliseconds since
+     *                           the epoch.
+     */
+    public void setContentCreatedTime(long contentCreatedTime) {
+        if (mContentCreatedTime != contentCreatedTime) {
+            this.mContentCreatedTime = contentCreatedTime;
+            markChanged(FIELD_CONTENT_CREATED);
+        }
     }
 
     /**
@@ -373,7 +652,17 @@ public class CardData extends PublishableCard {
      * and any field has changed.
      */
     public Date getLastModifiedDate() {
-        return mLastModifiedDate;
+        return toDate(mLastModifiedTime);
+    }
+
+    /**
+     * Gets the modified time for this CardData, without allocating a {@link java.util.Date}.
+     * @see org.cyanogenmod.launcher.home.api.cards.CardData#getLastModifiedDate()
+     * @return The time in milliseconds since the epoch, or 0 if this CardData was never
+     *         published.
+     */
+    public long getLastModifiedTime() {
+        return mLastModifiedTime != NO_TIME ? mLastModifiedTime : 0;
     }
 
     /**
@@ -398,7 +687,10 @@ public class CardData extends PublishableCard {
      *                              including internet resources, are allowed).
      */
     public void setContentSourceImage(Uri contentSourceImageUri) {
-        this.mContentSourceImageUri = contentSourceImageUri;
+        if (!equalUris(mContentSourceImageUri, contentSourceImageUri)) {
+            this.mContentSourceImageUri = contentSourceImageUri;
+            markChanged(FIELD_CONTENT_SOURCE_IMAGE);
+        }
 
         mContentSourceImageResourceId = 0;
         mContentSourceImageBitmap = null;
@@ -420,6 +712,7 @@ public class CardData extends PublishableCard {
 
         mContentSourceImageResourceId = 0;
         mContentSourceImageUri = null;
+        markChanged(FIELD_CONTENT_SOURCE_IMAGE);
     }
 
     /**
@@ -439,6 +732,7 @@ public class CardData extends PublishableCard {
 
         mContentSourceImageBitmap = null;
         mContentSourceImageUri = null;
+        markChanged(FIELD_CONTENT_SOURCE_IMAGE);
     }
 
 
@@ -463,7 +757,10 @@ public class CardData extends PublishableCard {
      *                              including internet resources, are allowed).
      */
     public void setAvatarImage(Uri avatarImageUri) {
-        this.mAvatarImageUri = avatarImageUri;
+        if (!equalUris(mAvatarImageUri, avatarImageUri)) {
+            this.mAvatarImageUri = avatarImageUri;
+            markChanged(FIELD_AVATAR_IMAGE);
+        }
 
         mAvatarImageResourceId = 0;
         mAvatarImageBitmap = null;
@@ -489,6 +786,7 @@ public class CardData extends PublishableCard {
 
         mAvatarImageResourceId = 0;
         mAvatarImageUri = null;
+        markChanged(FIELD_AVATAR_IMAGE);
     }
 
     /**
@@ -511,6 +809,7 @@ public class CardData extends PublishableCard {
 
         mAvatarImageBitmap = null;
         mAvatarImageUri = null;
+        markChanged(FIELD_AVATAR_IMAGE);
     }
 
     /**
@@ -526,7 +825,10 @@ public class CardData extends PublishableCard {
      * @param title A String to use as the title of this CardData.
      */
     public void setTitle(String title) {
-        this.mTitle = title;
+        if (!TextUtils.equals(mTitle, title)) {
+            this.mTitle = title;
+            markChanged(FIELD_TITLE);
+        }
     }
 
     /**
@@ -548,7 +850,10 @@ public class CardData extends PublishableCard {
      * @param smallText A String that will be displayed in smaller text near the title of the card.
      */
     public void setSmallText(String smallText) {
-        this.mSmallText = smallText;
+        if (!TextUtils.equals(mSmallText, smallText)) {
+            this.mSmallText = smallText;
+            markChanged(FIELD_SMALL_TEXT);
+        }
     }
 
     /**
@@ -568,7 +873,10 @@ public class CardData extends PublishableCard {
      * @param bodyText A String containing the main content text of this CardData.
      */
     public void setBodyText(String bodyText) {
-        this.mBodyText = bodyText;
+        if (!TextUtils.equals(mBodyText, bodyText)) {
+            this.mBodyText = bodyText;
+            markChanged(FIELD_BODY_TEXT);
+        }
     }
 
     /**
@@ -580,7 +888,10 @@ public class CardData extends PublishableCard {
      * @param category A String representing the category for this card.
      */
     public void setCategory(String category) {
-        this.mCategory = category;
+        if (!TextUtils.equals(mCategory, category)) {
+            this.mCategory = category;
+            markChanged(FIELD_CATEGORY);
+        }
     }
 
     /**
@@ -599,7 +910,12 @@ public class CardData extends PublishableCard {
      *         that contains the Intent and information about it.
      */
     public CardDataIntentInfo getCardClickIntentInfo() {
-        return getCardDataIntentInfoForIntent(mCardClickIntent);
+        Intent intent = mCardClickIntent;
+        if (intent == null && mCardClickIntentUri != null) {
+            intent = parseIntentUri(mCardClickIntentUri);
+            mCardClickIntent = intent;
+        }
+        return getCardDataIntentInfoForIntent(intent);
     }
 
     /**
@@ -611,9 +927,11 @@ public class CardData extends PublishableCard {
      * @param isBroadcast Is this Intent in cardClickIntent a Broadcast Intent?
      */
     public void setCardClickIntent(Intent cardClickIntent, boolean isBroadcast) {
-        mCardClickIntent = cardClickIntent;
-        mCardClickIntent
+        cardClickIntent
                 .putExtra(CmHomeContract.CardDataContract.IS_BROADCAST_INTENT_EXTRA, isBroadcast);
+        mCardClickIntent = cardClickIntent;
+        mCardClickIntentUri = null;
+        markChanged(FIELD_CARD_CLICK_INTENT);
     }
 
     /**
@@ -633,7 +951,10 @@ public class CardData extends PublishableCard {
      * @param action1Text A String to display on the first action button.
      */
     public void setAction1Text(String action1Text) {
-        this.mAction1Text = action1Text;
+        if (!TextUtils.equals(mAction1Text, action1Text)) {
+            this.mAction1Text = action1Text;
+            markChanged(FIELD_ACTION_1_TEXT);
+        }
     }
 
     /**
@@ -644,7 +965,12 @@ public class CardData extends PublishableCard {
      *         containing the Intent for the first action button.
      */
     public CardDataIntentInfo getAction1IntentInfo() {
-        return getCardDataIntentInfoForIntent(mAction1Intent);
+        Intent intent = mAction1Intent;
+        if (intent == null && mAction1IntentUri != null) {
+            intent = parseIntentUri(mAction1IntentUri);
+            mAction1Intent = intent;
+        }
+        return getCardDataIntentInfoForIntent(intent);
     }
 
     /**
@@ -656,9 +982,11 @@ public class CardData extends PublishableCard {
      * @param isBroadcast true if action1Intent is a Broadcast Intent, false otherwise.
      */
     public void setAction1Intent(Intent action1Intent, boolean isBroadcast) {
+        action1Intent.putExtra(CmHomeContract.CardDataContract.IS_BROADCAST_INTENT_EXTRA,
+                               isBroadcast);
         this.mAction1Intent = action1Intent;
-        mAction1Intent.putExtra(CmHomeContract.CardDataContract.IS_BROADCAST_INTENT_EXTRA,
-                                isBroadcast);
+        mAction1IntentUri = null;
+        markChanged(FIELD_ACTION_1_INTENT);
     }
 
 
@@ -679,7 +1007,10 @@ public class CardData extends PublishableCard {
      * @param action2Text A String to display on the second action button.
     */
     public void setAction2Text(String action2Text) {
-        this.mAction2Text = action2Text;
+        if (!TextUtils.equals(mAction2Text, action2Text)) {
+            this.mAction2Text = action2Text;
+            markChanged(FIELD_ACTION_2_TEXT);
+        }
     }
 
     /**
@@ -690,7 +1021,12 @@ public class CardData extends PublishableCard {
      *         containing the Intent for the second action button.
      */
     public CardDataIntentInfo getAction2IntentInfo() {
-        return getCardDataIntentInfoForIntent(mAction2Intent);
+        Intent intent = mAction2Intent;
+        if (intent == null && mAction2IntentUri != null) {
+            intent = parseIntentUri(mAction2IntentUri);
+            mAction2Intent = intent;
+        }
+        return getCardDataIntentInfoForIntent(intent);
     }
 
     /**
@@ -702,8 +1038,10 @@ public class CardData extends PublishableCard {
      * @param isBroadcast true if action2Intent is a Broadcast Intent, false otherwise.
     */
     public void setAction2Intent(Intent action2Intent, boolean isBroadcast) {
+        action2Intent.putExtra(CmHomeContract.CardDataContract.IS_BROADCAST_INTENT_EXTRA, isBroadcast);
         this.mAction2Intent = action2Intent;
-        mAction1Intent.putExtra(CmHomeContract.CardDataContract.IS_BROADCAST_INTENT_EXTRA, isBroadcast);
+        mAction2IntentUri = null;
+        markChanged(FIELD_ACTION_2_INTENT);
     }
 
     /**
@@ -736,7 +1074,7 @@ public class CardData extends PublishableCard {
      *              {@link org.cyanogenmod.launcher.home.api.cards.CardData.Priority#LOW}.
     */
     private void setPriority(int value) {
-        mPriority = Priority.getModeForValue(value);
+        setPriority(Priority.getModeForValue(value));
     }
 
     /**
@@ -750,7 +1088,10 @@ public class CardData extends PublishableCard {
      *                 {@link org.cyanogenmod.launcher.home.api.cards.CardData.Priority#LOW}.
     */
     public void setPriority(Priority priority) {
-        this.mPriority = priority;
+        if (mPriority != priority) {
+            this.mPriority = priority;
+            markChanged(FIELD_PRIORITY);
+        }
     }
 
     /**
@@ -769,14 +1110,83 @@ public class CardData extends PublishableCard {
         return cardDataIntentInfo;
     }
 
+    /**
+     * Parses an Intent Uri read from the database.
+     * @param intentUri An Intent Uri String, as written by {@link #getContentValues()}.
+     * @return The parsed Intent, or null if the Uri could not be parsed.
+     */
+    private static Intent parseIntentUri(String intentUri) {
+        try {
+            return Intent.parseUri(intentUri, Intent.URI_INTENT_SCHEME);
+        } catch (URISyntaxException e) {
+            Log.e(TAG, "Unable to parse uri to Intent: " + intentUri);
+        }
+        return null;
+    }
+
     @Override
     public void publishSynchronous(Context context) {
-        if (!isPublished(context)) {
-            // Initialize the created date and modified date to now.
-            mCreatedDate = new Date();
-            mLastModifiedDate = new Date();
+        prepareForPublish(context);
+        super.publishSynchronous(context);
+
+        synchronized (mImages) {
+            for (CardDataImage image : mImages.values()) {
+                if (image.hasValidContent()) {
+                    image.publish(context);
+                } else {
+                    Log.e(TAG, "Invalid CardDataImage. At least uri or bitmap must be specified");
+                }
+            }
+        }
+
+        unpublishRemovedImages(context);
+    }
+
+    /**
+     * Stores the content source and avatar images, along with the images of all linked
+     * CardDataImages, in the image cache if they were set as resources or Bitmaps, so that they
+     * can be published as Uris. The images are prepared in parallel, and all of them are ready
+     * once this returns.
+     * @param context The context of the publishing application.
+     */
+    @Override
+    void prepareForPublish(final Context context) {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        if (mContentSourceImageResourceId != 0 || mContentSourceImageBitmap != null) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    prepareContentSourceImage(context);
+                }
+            });
+        }
+        if (mAvatarImageResourceId != 0 || mAvatarImageBitmap != null) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    prepareAvatarImage(context);
+                }
+            });
+        }
+        synchronized (mImages) {
+            for (final CardDataImage image : mImages.values()) {
+                if (image.hasValidContent()) {
+                    tasks.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            image.prepareImage(context);
+                        }
+                    });
+                }
+            }
+        }
+
+        if (!tasks.isEmpty()) {
+            ImagePreparer.runAll(tasks);
         }
+    }
 
+    private void prepareContentSourceImage(Context context) {
         if (mContentSourceImageResourceId != 0) {
             Bitmap bitmap = BitmapFactory.decodeResource(context.getResources(),
                                                          mContentSourceImageResourceId);
@@ -792,7 +1202,9 @@ public class CardData extends PublishableCard {
                 setContentSourceImage(uri);
             }
         }
+    }
 
+    private void prepareAvatarImage(Context context) {
         if (mAvatarImageResourceId != 0) {
             Bitmap bitmap = BitmapFactory.decodeResource(context.getResources(),
                                                          mAvatarImageResourceId);
@@ -808,51 +1220,111 @@ public class CardData extends PublishableCard {
                 setAvatarImage(uri);
             }
         }
+    }
 
-        super.publishSynchronous(context);
+    @Override
+    void addPublishOperations(Context context, PublishBatch batch) {
+        super.addPublishOperations(context, batch);
 
+        List<CardDataImage> images;
         synchronized (mImages) {
-            for (CardDataImage image : mImages) {
-                if (image.hasValidContent()) {
-                    image.publish(context);
-                } else {
-                    Log.e(TAG, "Invalid CardDataImage. At least uri or bitmap must be specified");
-                }
+            images = new ArrayList<CardDataImage>(mImages.values());
+        }
+        for (CardDataImage image : images) {
+            if (image.hasValidContent()) {
+                image.addPublishOperations(context, batch);
+            } else {
+                Log.e(TAG, "Invalid CardDataImage. At least uri or bitmap must be specified");
             }
         }
 
-        for (CardDataImage image : mRemovedImages) {
-            image.unpublish(context);
+        for (CardDataImage image : getRemovedImagesToUnpublish()) {
+            batch.addRemovedImageDelete(this, image);
+        }
+    }
+
+    @Override
+    void addUnpublishOperations(PublishBatch batch) {
+        // Delete all associated images first
+        synchronized (mImages) {
+            for (CardDataImage image : mImages.values()) {
+                image.addUnpublishOperations(batch);
+            }
         }
+        super.addUnpublishOperations(batch);
+    }
+
+    @Override
+    void onInserted(long id, boolean contentHashValid, long contentHash) {
+        super.onInserted(id, contentHashValid, contentHash);
+        // Initialize the created date and modified date to now.
+        long now = System.currentTimeMillis();
+        mCreatedTime = now;
+        mLastModifiedTime = now;
     }
 
     /**
-     * Updates an existing row in the ContentProvider that represents this card.
-     * This will update every column at once.
-     * @param context A Context object to retrieve the ContentResolver
-     * @return true if the update successfully updates a row, false otherwise.
+     * @hide
+     *
+     * Computes a hash of the content of this card, including the content of all of its images.
+     * <p><b>This is intended to be an internal SDK method.</b></p>
+     * @return The content hash of this card and its images.
      */
     @Override
-    protected boolean update(Context context) {
-        boolean updated = super.update(context);
-        if (updated) {
-            // Update all associated images as well
-            synchronized (mImages) {
-                for (CardDataImage image : mImages) {
-                    if (image.hasValidContent()) {
-                        image.publish(context);
-                    } else {
-                        Log.e(TAG, "Invalid CardDataImage. At least uri or bitmap must be specified");
-                    }
-                }
+    public long getContentHash() {
+        long hash = super.getContentHash();
+        synchronized (mImages) {
+            for (CardDataImage image : mImages.values()) {
+                hash = hashLong(hash, image.getId());
+                hash = hashLong(hash, image.getContentHash());
             }
+        }
+        return hash;
+    }
 
-            for (CardDataImage image : mRemovedImages) {
-                image.unpublish(context);
+    /**
+     * Unpublishes the images removed from this card since it was last published. Removals that
+     * fail are kept to be sent again on the next publish.
+     * @param context A Context object to retrieve the ContentResolver
+     */
+    private void unpublishRemovedImages(Context context) {
+        for (CardDataImage image : getRemovedImagesToUnpublish()) {
+            if (image.delete(context) >= 0) {
+                onRemovedImageUnpublished(image);
             }
         }
+    }
 
-        return updated;
+    /**
+     * Retrieves the removed images whose rows must still be deleted. Removed images that never
+     * had a row, or whose row is now owned by another image of this card, are dropped.
+     * @return The removed images to unpublish.
+     */
+    List<CardDataImage> getRemovedImagesToUnpublish() {
+        List<CardDataImage> removedImages = new ArrayList<CardDataImage>();
+        synchronized (mImages) {
+            Iterator<CardDataImage> iterator = mRemovedImages.iterator();
+            while (iterator.hasNext()) {
+                CardDataImage image = iterator.next();
+                // Never published, or replaced by an image that now owns the same row
+                if (image.getId() == -1 || findImage(image.getId()) != null) {
+                    iterator.remove();
+                } else {
+                    removedImages.add(image);
+                }
+            }
+        }
+        return removedImages;
+    }
+
+    /**
+     * Drops a removed image once its row has been deleted.
+     * @param image The removed image that was unpublished.
+     */
+    void onRemovedImageUnpublished(CardDataImage image) {
+        synchronized (mImages) {
+            mRemovedImages.remove(image);
+        }
     }
 
     /**
@@ -864,7 +1336,7 @@ public class CardData extends PublishableCard {
     public boolean unpublish(Context context) {
         // Delete all associated images first
         synchronized (mImages) {
-            for (CardDataImage image : mImages) {
+            for (CardDataImage image : mImages.values()) {
                 image.unpublish(context);
             }
         }
@@ -873,64 +1345,207 @@ public class CardData extends PublishableCard {
 
     @Override
     protected ContentValues getContentValues() {
+        return getContentValues(ALL_FIELDS, false);
+    }
+
+    /**
+     * Builds the values of the given fields, as they are written by
+     * {@link #getContentValues()}.
+     * @param fields The FIELD_ flags of the fields to include.
+     * @param clearUnset True to write NULL for included fields that are not set, so that an
+     *                   update of only these fields clears the values they had before. The
+     *                   full row leaves them out instead, and relies on the column defaults.
+     */
+    private ContentValues getContentValues(int fields, boolean clearUnset) {
         ContentValues values = new ContentValues();
 
-        values.put(CmHomeContract.CardDataContract.INTERNAL_ID_COL, getInternalId());
-        values.put(CmHomeContract.CardDataContract.REASON_COL, getReasonText());
+        if ((fields & FIELD_INTERNAL_ID) != 0) {
+            values.put(CmHomeContract.CardDataContract.INTERNAL_ID_COL, getInternalId());
+        }
+        if ((fields & FIELD_REASON) != 0) {
+            values.put(CmHomeContract.CardDataContract.REASON_COL, getReasonText());
+        }
 
-        if (getContentCreatedDate() != null) {
-            values.put(CmHomeContract.CardDataContract.DATE_CONTENT_CREATED_COL,
-                       getContentCreatedDate().getTime());
+        if ((fields & FIELD_CONTENT_CREATED) != 0) {
+            if (mContentCreatedTime != NO_TIME) {
+                values.put(CmHomeContract.CardDataContract.DATE_CONTENT_CREATED_COL,
+                           mContentCreatedTime);
+            } else if (clearUnset) {
+                values.putNull(CmHomeContract.CardDataContract.DATE_CONTENT_CREATED_COL);
+            }
         }
 
-        if (getContentSourceImageUri() != null) {
-            values.put(CmHomeContract.CardDataContract.CONTENT_SOURCE_IMAGE_URI_COL,
-                       getContentSourceImageUri().toString());
+        if ((fields & FIELD_CONTENT_SOURCE_IMAGE) != 0) {
+            Uri contentSourceImageUri = getContentSourceImageUri();
+            putString(values, CmHomeContract.CardDataContract.CONTENT_SOURCE_IMAGE_URI_COL,
+                      contentSourceImageUri != null ? contentSourceImageUri.toString() : null,
+                      clearUnset);
         }
 
-        if (getAvatarImageUri() != null) {
-            values.put(CmHomeContract.CardDataContract.AVATAR_IMAGE_URI_COL,
-                       getAvatarImageUri().toString());
+        if ((fields & FIELD_AVATAR_IMAGE) != 0) {
+            Uri avatarImageUri = getAvatarImageUri();
+            putString(values, CmHomeContract.CardDataContract.AVATAR_IMAGE_URI_COL,
+                      avatarImageUri != null ? avatarImageUri.toString() : null, clearUnset);
         }
 
-        values.put(CmHomeContract.CardDataContract.TITLE_TEXT_COL,
-                   getTitle());
-        values.put(CmHomeContract.CardDataContract.SMALL_TEXT_COL,
-                   getSmallText());
-        values.put(CmHomeContract.CardDataContract.BODY_TEXT_COL,
-                   getBodyText());
-        values.put(CmHomeContract.CardDataContract.CATEGORY_COL,
-                   getCategory());
-        values.put(CmHomeContract.CardDataContract.ACTION_1_TEXT_COL,
-                   getAction1Text());
+        if ((fields & FIELD_TITLE) != 0) {
+            values.put(CmHomeContract.CardDataContract.TITLE_TEXT_COL,
+                       getTitle());
+        }
+        if ((fields & FIELD_SMALL_TEXT) != 0) {
+            values.put(CmHomeContract.CardDataContract.SMALL_TEXT_COL,
+                       getSmallText());
+        }
+        if ((fields & FIELD_BODY_TEXT) != 0) {
+            values.put(CmHomeContract.CardDataContract.BODY_TEXT_COL,
+                       getBodyText());
+        }
+        if ((fields & FIELD_CATEGORY) != 0) {
+            values.put(CmHomeContract.CardDataContract.CATEGORY_COL,
+                       getCategory());
+        }
+        if ((fields & FIELD_ACTION_1_TEXT) != 0) {
+            values.put(CmHomeContract.CardDataContract.ACTION_1_TEXT_COL,
+                       getAction1Text());
+        }
 
-        if (getAction1IntentInfo() != null) {
-            values.put(CmHomeContract.CardDataContract.ACTION_1_URI_COL,
-                       getAction1IntentInfo().getIntent().toUri(Intent.URI_INTENT_SCHEME)
-                                             .toString());
+        if ((fields & FIELD_ACTION_1_INTENT) != 0) {
+            putString(values, CmHomeContract.CardDataContract.ACTION_1_URI_COL,
+                      getIntentUri(mAction1IntentUri, mAction1Intent), clearUnset);
         }
 
-        values.put(CmHomeContract.CardDataContract.ACTION_2_TEXT_COL,
-                   getAction2Text());
+        if ((fields & FIELD_ACTION_2_TEXT) != 0) {
+            values.put(CmHomeContract.CardDataContract.ACTION_2_TEXT_COL,
+                       getAction2Text());
+        }
 
-        if (getAction2IntentInfo() != null) {
-            values.put(CmHomeContract.CardDataContract.ACTION_2_URI_COL,
-                       getAction2IntentInfo().getIntent().
-                               toUri(Intent.URI_INTENT_SCHEME).toString());
+        if ((fields & FIELD_ACTION_2_INTENT) != 0) {
+            putString(values, CmHomeContract.CardDataContract.ACTION_2_URI_COL,
+                      getIntentUri(mAction2IntentUri, mAction2Intent), clearUnset);
         }
 
-        values.put(CmHomeContract.CardDataContract.PRIORITY_COL,
-                   getPriorityAsInt());
+        if ((fields & FIELD_PRIORITY) != 0) {
+            values.put(CmHomeContract.CardDataContract.PRIORITY_COL,
+                       getPriorityAsInt());
+        }
 
-        if (getCardClickIntentInfo() != null) {
-            values.put(CmHomeContract.CardDataContract.CARD_CLICK_URI_COL,
-                       getCardClickIntentInfo().getIntent().
-                               toUri(Intent.URI_INTENT_SCHEME).toString());
+        if ((fields & FIELD_CARD_CLICK_INTENT) != 0) {
+            putString(values, CmHomeContract.CardDataContract.CARD_CLICK_URI_COL,
+                      getIntentUri(mCardClickIntentUri, mCardClickIntent), clearUnset);
         }
 
         return values;
     }
 
+    private static void putString(ContentValues values, String column, String value,
+                                  boolean clearUnset) {
+        if (value != null) {
+            values.put(column, value);
+        } else if (clearUnset) {
+            values.putNull(column);
+        }
+    }
+
+    /**
+     * @return The Uri String to store for an Intent, without parsing an Intent that was read
+     *         from the database and not used since.
+     */
+    private static String getIntentUri(String unparsedIntentUri, Intent intent) {
+        if (unparsedIntentUri != null) {
+            return unparsedIntentUri;
+        }
+        if (intent != null) {
+            return intent.toUri(Intent.URI_INTENT_SCHEME);
+        }
+        return null;
+    }
+
+    /**
+     * @hide
+     * Writes the fields of this CardData that are stored by the ContentProvider,
+     * along with its images, to the given stream.
+     * <p><b>This is intended to be an internal SDK method.</b></p>
+     * @see #readFromStream(DataInputStream, String)
+     * @param out The stream to write to.
+     * @throws IOException If writing to the stream fails.
+     */
+    public void writeToStream(DataOutputStream out) throws IOException {
+        out.writeLong(getId());
+        writeString(out, mInternalId);
+        writeString(out, mReasonText);
+        out.writeLong(mContentCreatedTime);
+        out.writeLong(mCreatedTime);
+        out.writeLong(mLastModifiedTime);
+        writeUri(out, mContentSourceImageUri);
+        writeUri(out, mAvatarImageUri);
+        writeString(out, mTitle);
+        writeString(out, mSmallText);
+        writeString(out, mBodyText);
+        writeString(out, mCategory);
+        writeString(out, getIntentUri(mCardClickIntentUri, mCardClickIntent));
+        writeString(out, mAction1Text);
+        writeString(out, getIntentUri(mAction1IntentUri, mAction1Intent));
+        writeString(out, mAction2Text);
+        writeString(out, getIntentUri(mAction2IntentUri, mAction2Intent));
+        out.writeInt(getPriorityAsInt());
+
+        synchronized (mImages) {
+            out.writeInt(mImages.size());
+            for (CardDataImage image : mImages.values()) {
+                image.writeToStream(out);
+            }
+        }
+    }
+
+    /**
+     * @hide
+     * Reads a CardData and its images as written by {@link #writeToStream(DataOutputStream)}.
+     * <p><b>This is intended to be an internal SDK method.</b></p>
+     * @param in The stream to read from.
+     * @param authority The authority of the CM Home extension ContentProvider that this
+     *                  CardData originated from.
+     * @return The CardData read from the stream.
+     * @throws IOException If reading from the stream fails.
+     */
+    public static CardData readFromStream(DataInputStream in, String authority)
+            throws IOException {
+        CardData cardData = new CardData();
+        cardData.setId(in.readLong());
+        cardData.setAuthority(authority);
+        cardData.mInternalId = readString(in);
+        cardData.mReasonText = readString(in);
+        cardData.mContentCreatedTime = in.readLong();
+        cardData.mCreatedTime = in.readLong();
+        cardData.mLastModifiedTime = in.readLong();
+        cardData.mContentSourceImageUri = readUri(in);
+        cardData.mAvatarImageUri = readUri(in);
+        cardData.mTitle = readString(in);
+        cardData.mSmallText = readString(in);
+        cardData.mBodyText = readString(in);
+        cardData.mCategory = readString(in);
+        cardData.mCardClickIntentUri = readString(in);
+        cardData.mAction1Text = readString(in);
+        cardData.mAction1IntentUri = readString(in);
+        cardData.mAction2Text = readString(in);
+        cardData.mAction2IntentUri = readString(in);
+        cardData.setPriority(in.readInt());
+
+        int imageCount = in.readInt();
+        for (int i = 0; i < imageCount; i++) {
+            cardData.addCardDataImage(CardDataImage.readFromStream(in, authority));
+        }
+        return cardData;
+    }
+
+    private static void writeUri(DataOutputStream out, Uri uri) throws IOException {
+        writeString(out, uri != null ? uri.toString() : null);
+    }
+
+    private static Uri readUri(DataInputStream in) throws IOException {
+        String uriString = readString(in);
+        return uriString != null ? Uri.parse(uriString) : null;
+    }
+
     /**
      * Retrieves all published cards from this application that are available at the current time.
      * @param context The context of the publishing application.
@@ -958,9 +1573,7 @@ public class CardData extends PublishableCard {
      * @return The CardData object represented in the current row of the input Cursor.
      */
     public static CardData createFromCurrentCursorRow(Cursor cursor, String authority) {
-        CardData card = createFromCurrentCursorRow(cursor);
-        card.setAuthority(authority);
-        return card;
+        return new CursorRowMapper(cursor, authority).createFromCurrentRow();
     }
 
     /**
@@ -973,98 +1586,169 @@ public class CardData extends PublishableCard {
      * @return The CardData object represented in the current row of the input Cursor.
      */
     public static CardData createFromCurrentCursorRow(Cursor cursor) {
-        CardData cardData = new CardData();
+        return new CursorRowMapper(cursor, null).createFromCurrentRow();
+    }
 
-        cardData.setId(cursor.getInt(cursor.getColumnIndex(CmHomeContract.CardDataContract._ID)));
-        cardData.setInternalId(cursor.getString(cursor.getColumnIndex(
-                CmHomeContract.CardDataContract
-                                                                      .INTERNAL_ID_COL)));
-        long createdTime = cursor.getLong(cursor.getColumnIndex(CmHomeContract.CardDataContract
-                                                                .DATE_CREATED_COL));
-        cardData.setCreatedDate(new Date(createdTime));
-        long modifiedTime = cursor.getLong(cursor.getColumnIndex(CmHomeContract.CardDataContract
-                                                                 .LAST_MODIFIED_COL));
-        cardData.setLastModifiedDate(new Date(modifiedTime));
-        long contentCreatedTime = cursor.getLong(
-                cursor.getColumnIndex(CmHomeContract.CardDataContract.DATE_CONTENT_CREATED_COL));
-        cardData.setContentCreatedDate(new Date(contentCreatedTime));
-        cardData.setReasonText(cursor.getString(cursor.getColumnIndex(
-                CmHomeContract.CardDataContract
-                                                                           .REASON_COL)));
-        String contentSourceUriString =
-                cursor.getString(cursor.getColumnIndex(
-                        CmHomeContract.CardDataContract.CONTENT_SOURCE_IMAGE_URI_COL));
-
-        if (!TextUtils.isEmpty(contentSourceUriString)) {
-            cardData.setContentSourceImage(Uri.parse(contentSourceUriString));
-        }
-
-        String avatarImageUriString =
-                cursor.getString(cursor.getColumnIndex(
-                        CmHomeContract.CardDataContract.AVATAR_IMAGE_URI_COL));
-        if (!TextUtils.isEmpty(avatarImageUriString)) {
-            cardData.setAvatarImage(Uri.parse(avatarImageUriString));
-        }
-
-        cardData.setTitle(cursor.getString(
-                cursor.getColumnIndex(CmHomeContract.CardDataContract.TITLE_TEXT_COL)));
-        cardData.setSmallText(
-                cursor.getString(cursor.getColumnIndex(
-                        CmHomeContract.CardDataContract.SMALL_TEXT_COL)));
-        cardData.setBodyText(cursor.getString(
-                cursor.getColumnIndex(CmHomeContract.CardDataContract.BODY_TEXT_COL)));
-        cardData.setCategory(cursor.getString(
-                cursor.getColumnIndex(CmHomeContract.CardDataContract.CATEGORY_COL)));
-        cardData.setAction1Text(
-                cursor.getString(cursor.getColumnIndex(
-                        CmHomeContract.CardDataContract.ACTION_1_TEXT_COL)));
-
-        String clickActionUriString = cursor.getString(
-                cursor.getColumnIndex(CmHomeContract.CardDataContract.CARD_CLICK_URI_COL));
-        if (!TextUtils.isEmpty(clickActionUriString)) {
-            try {
-                Intent cardClickIntent = Intent.parseUri(clickActionUriString,
-                                                         Intent.URI_INTENT_SCHEME);
-                cardData.setCardClickIntent(cardClickIntent, isIntentBroadcast(cardClickIntent));
-            } catch (URISyntaxException e) {
-                Log.e(TAG, "Unable to parse uri to Intent: " + clickActionUriString);
-            }
+    /**
+     * @hide
+     * Creates CardData objects from the rows of a Database cursor containing CardData data.
+     * The column indexes are looked up once when the mapper is created, so that mapping each
+     * row does not need to look up any column by name.
+     * <p><b>This is intended to be an internal SDK method.
+     * Use {@link #getAllPublishedCardDatas(Context)} to retrieve cards.</b></p>
+     */
+    public static final class CursorRowMapper {
+        private final Cursor mCursor;
+        private final String mAuthority;
+        private final int    mIdIndex;
+        private final int    mInternalIdIndex;
+        private final int    mDateCreatedIndex;
+        private final int    mLastModifiedIndex;
+        private final int    mDateContentCreatedIndex;
+        private final int    mReasonIndex;
+        private final int    mContentSourceImageUriIndex;
+        private final int    mAvatarImageUriIndex;
+        private final int    mTitleTextIndex;
+        private final int    mSmallTextIndex;
+        private final int    mBodyTextIndex;
+        private final int    mCategoryIndex;
+        private final int    mCardClickUriIndex;
+        private final int    mAction1TextIndex;
+        private final int    mAction1UriIndex;
+        private final int    mAction2TextIndex;
+        private final int    mAction2UriIndex;
+        private final int    mPriorityIndex;
+
+        /**
+         * @param cursor A cursor containing CardData data. The mapper must not be used after
+         *               the cursor has been closed.
+         * @param authority The authority of the CM Home extension ContentProvider that the
+         *                  cursor originated from, or null if unknown.
+         */
+        public CursorRowMapper(Cursor cursor, String authority) {
+            mCursor = cursor;
+            mAuthority = authority;
+            mIdIndex = cursor.getColumnIndex(CmHomeContract.CardDataContract._ID);
+            mInternalIdIndex =
+                    cursor.getColumnIndex(CmHomeContract.CardDataContract.INTERNAL_ID_COL);
+            mDateCreatedIndex =
+                    cursor.getColumnIndex(CmHomeContract.CardDataContract.DATE_CREATED_COL);
+            mLastModifiedIndex =
+                    cursor.getColumnIndex(CmHomeContract.CardDataContract.LAST_MODIFIED_COL);
+            mDateContentCreatedIndex = cursor.getColumnIndex(
+                    CmHomeContract.CardDataContract.DATE_CONTENT_CREATED_COL);
+            mReasonIndex = cursor.getColumnIndex(CmHomeContract.CardDataContract.REASON_COL);
+            mContentSourceImageUriIndex = cursor.getColumnIndex(
+                    CmHomeContract.CardDataContract.CONTENT_SOURCE_IMAGE_URI_COL);
+            mAvatarImageUriIndex =
+                    cursor.getColumnIndex(CmHomeContract.CardDataContract.AVATAR_IMAGE_URI_COL);
+            mTitleTextIndex =
+                    cursor.getColumnIndex(CmHomeContract.CardDataContract.TITLE_TEXT_COL);
+            mSmallTextIndex =
+                    cursor.getColumnIndex(CmHomeContract.CardDataContract.SMALL_TEXT_COL);
+            mBodyTextIndex = cursor.getColumnIndex(CmHomeContract.CardDataContract.BODY_TEXT_COL);
+            mCategoryIndex = cursor.getColumnIndex(CmHomeContract.CardDataContract.CATEGORY_COL);
+            mCardClickUriIndex =
+                    cursor.getColumnIndex(CmHomeContract.CardDataContract.CARD_CLICK_URI_COL);
+            mAction1TextIndex =
+                    cursor.getColumnIndex(CmHomeContract.CardDataContract.ACTION_1_TEXT_COL);
+            mAction1UriIndex =
+                    cursor.getColumnIndex(CmHomeContract.CardDataContract.ACTION_1_URI_COL);
+            mAction2TextIndex =
+                    cursor.getColumnIndex(CmHomeContract.CardDataContract.ACTION_2_TEXT_COL);
+            mAction2UriIndex =
+                    cursor.getColumnIndex(CmHomeContract.CardDataContract.ACTION_2_URI_COL);
+            mPriorityIndex = cursor.getColumnIndex(CmHomeContract.CardDataContract.PRIORITY_COL);
         }
 
-        String action1UriString = cursor.getString(
-                cursor.getColumnIndex(CmHomeContract.CardDataContract.ACTION_1_URI_COL));
-        if (!TextUtils.isEmpty(action1UriString)) {
-            try {
-                Intent action1Intent = Intent.parseUri(action1UriString,
-                                                          Intent.URI_INTENT_SCHEME);
-                cardData.setAction1Intent(action1Intent,
-                                          isIntentBroadcast(action1Intent));
-            } catch (URISyntaxException e) {
-                Log.e(TAG, "Unable to parse uri to Intent: " + action1UriString);
+        /**
+         * @return The CardData object represented in the current row of the cursor.
+         */
+        public CardData createFromCurrentRow() {
+            Cursor cursor = mCursor;
+            CardData cardData = new CardData();
+
+            cardData.setId(cursor.getInt(mIdIndex));
+            cardData.setInternalId(cursor.getString(mInternalIdIndex));
+            cardData.setCreatedTime(getDateFromCursor(cursor, mDateCreatedIndex));
+            cardData.setLastModifiedTime(getDateFromCursor(cursor, mLastModifiedIndex));
+            cardData.setContentCreatedTime(getDateFromCursor(cursor, mDateContentCreatedIndex));
+            cardData.setReasonText(cursor.getString(mReasonIndex));
+
+            String contentSourceUriString = cursor.getString(mContentSourceImageUriIndex);
+            if (!TextUtils.isEmpty(contentSourceUriString)) {
+                cardData.setContentSourceImage(Uri.parse(contentSourceUriString));
             }
-        }
 
-        cardData.setAction2Text(cursor.getString(
-                cursor.getColumnIndex(CmHomeContract.CardDataContract.ACTION_2_TEXT_COL)));
+            String avatarImageUriString = cursor.getString(mAvatarImageUriIndex);
+            if (!TextUtils.isEmpty(avatarImageUriString)) {
+                cardData.setAvatarImage(Uri.parse(avatarImageUriString));
+            }
+
+            cardData.setTitle(cursor.getString(mTitleTextIndex));
+            cardData.setSmallText(cursor.getString(mSmallTextIndex));
+            cardData.setBodyText(cursor.getString(mBodyTextIndex));
+            cardData.setCategory(cursor.getString(mCategoryIndex));
+            cardData.setAction1Text(cursor.getString(mAction1TextIndex));
+
+            // Intents are parsed only when first requested, most are never used
+            String clickActionUriString = cursor.getString(mCardClickUriIndex);
+            if (!TextUtils.isEmpty(clickActionUriString)) {
+                cardData.mCardClickIntentUri = clickActionUriString;
+            }
+
+            String action1UriString = cursor.getString(mAction1UriIndex);
+            if (!TextUtils.isEmpty(action1UriString)) {
+                cardData.mAction1IntentUri = action1UriString;
+            }
+
+            cardData.setAction2Text(cursor.getString(mAction2TextIndex));
+
+            String action2UriString = cursor.getString(mAction2UriIndex);
+            if (!TextUtils.isEmpty(action2UriString)) {
+                cardData.mAction2IntentUri = action2UriString;
+            }
+
+            cardData.setPriority(cursor.getInt(mPriorityIndex));
 
-        String action2UriString = cursor.getString(
-                cursor.getColumnIndex(CmHomeContract.CardDataContract.ACTION_2_URI_COL));
-        if (!TextUtils.isEmpty(action2UriString)) {
-            try {
-                Intent action2Intent = Intent.parseUri(action2UriString,
-                                                          Intent.URI_INTENT_SCHEME);
-                cardData.setAction2Intent(action2Intent,
-                                          isIntentBroadcast(action2Intent));
-            } catch (URISyntaxException e) {
-                Log.e(TAG, "Unable to parse uri to Intent: " + action2UriString);
+            if (mAuthority != null) {
+                cardData.setAuthority(mAuthority);
             }
+            // The card matches its row, until it is changed
+            cardData.mChangedFields = 0;
+            return cardData;
         }
+    }
 
-        int priority = cursor.getInt(cursor.getColumnIndex(CmHomeContract.CardDataContract
-                                                                        .PRIORITY_COL));
-        cardData.setPriority(priority);
+    /**
+     * @hide
+     * Reads a date column of a CardData cursor as epoch milliseconds. Providers built with older
+     * versions of the SDK store the dates set by their database as "YYYY-MM-DD HH:MM:SS" text
+     * in UTC.
+     * <p><b>This is intended to be an internal SDK method.</b></p>
+     * @param cursor A cursor that has been moved to a row that contains CardData data.
+     * @param columnIndex The index of the date column to read.
+     * @return The date in epoch milliseconds, or 0 if it cannot be read.
+     */
+    public static long getDateFromCursor(Cursor cursor, int columnIndex) {
+        if (cursor.getType(columnIndex) != Cursor.FIELD_TYPE_STRING) {
+            return cursor.getLong(columnIndex);
+        }
 
-        return cardData;
+        String dateString = cursor.getString(columnIndex);
+        SimpleDateFormat legacyFormat = new SimpleDateFormat(LEGACY_DATE_FORMAT, Locale.US);
+        legacyFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            return legacyFormat.parse(dateString).getTime();
+        } catch (ParseException e) {
+            // Not a timestamp, the column may hold milliseconds stored as text
+        }
+        try {
+            return Long.parseLong(dateString);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Unable to parse date: " + dateString);
+        }
+        return 0;
     }
 
     /**
@@ -1097,6 +1781,28 @@ public class CardData extends PublishableCard {
     public static List<CardData> getAllPublishedCardDatas(Context context,
                                                           Uri cardDataContentUri,
                                                           Uri cardDataImageContentUri) {
+        return getAllPublishedCardDatas(context, cardDataContentUri, cardDataImageContentUri,
+                                        null);
+    }
+
+    /**
+     * @hide
+     * Retrieves a list of cards that are currently published for the given CardData Uri and
+     * CardDataImage Uri, allowing the queries to be cancelled.
+     * <p><b>This is intended to be an internal SDK method. You should use
+     * {@link org.cyanogenmod.launcher.home.api.cards.CardData#getAllPublishedCardDatas(Context)}</b></p>
+     * @param context A Context object to retrieve the ContentResolver.
+     * @param cardDataContentUri The Content Uri containing the cards to query for.
+     * @param cardDataImageContentUri The Content Uri containing the CardDataImage objects to
+     *                                query for.
+     * @param cancellationSignal A signal to cancel the queries, or null.
+     * @return A list of CardData objects that are currently published. If the queries are
+     *         cancelled, the list may be incomplete.
+     */
+    public static List<CardData> getAllPublishedCardDatas(Context context,
+                                                          Uri cardDataContentUri,
+                                                          Uri cardDataImageContentUri,
+                                                          CancellationSignal cancellationSignal) {
         ContentResolver contentResolver = context.getContentResolver();
         List<CardData> allCards = new ArrayList<CardData>();
         Cursor cursor = null;
@@ -1105,7 +1811,8 @@ public class CardData extends PublishableCard {
                                            CmHomeContract.CardDataContract.PROJECTION_ALL,
                                            null,
                                            null,
-                                           CmHomeContract.CardDataContract.DATE_CREATED_COL);
+                                           CmHomeContract.CardDataContract.DATE_CREATED_COL,
+                                           cancellationSignal);
         // Catching all Exceptions, since we can't be sure what the extension will do.
         } catch (Exception e) {
             Log.e(TAG, "Error querying for CardDatas, ContentProvider threw an exception for uri:" +
@@ -1113,25 +1820,32 @@ public class CardData extends PublishableCard {
         }
 
         if (cursor != null) {
+            CursorRowMapper rowMapper = new CursorRowMapper(cursor,
+                                                            cardDataContentUri.getAuthority());
             while (cursor.moveToNext()) {
-                CardData cardData = createFromCurrentCursorRow(cursor,
-                                                               cardDataContentUri.getAuthority());
-                allCards.add(cardData);
+                allCards.add(rowMapper.createFromCurrentRow());
             }
 
             cursor.close();
         }
 
 
-        // Retrieve all CardDataImages for each CardData.
-        // Doing this in a separate loop since each iteration
-        // will also be querying the ContentProvider.
+        if (allCards.isEmpty()) {
+            return allCards;
+        }
+
+        // Retrieve all CardDataImages for this provider in a single query,
+        // rather than querying once for each CardData.
+        List<CardDataImage> allImages =
+                CardDataImage.getAllPublishedCardDataImages(context, cardDataImageContentUri,
+                                                            cancellationSignal);
+        LongSparseArray<CardData> cardsById = new LongSparseArray<CardData>(allCards.size());
         for (CardData card : allCards) {
-            List<CardDataImage> images = CardDataImage
-                    .getPublishedCardDataImagesForCardDataId(context,
-                                                             cardDataImageContentUri,
-                                                             card.getId());
-            for (CardDataImage image : images) {
+            cardsById.put(card.getId(), card);
+        }
+        for (CardDataImage image : allImages) {
+            CardData card = cardsById.get(image.getCardDataId());
+            if (card != null) {
                 card.addCardDataImage(image);
             }
         }
@@ -7,11 +7,15 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.text.TextUtils;
 import android.util.Log;
 import org.cyanogenmod.launcher.home.api.provider.CmHomeContentProvider;
 import org.cyanogenmod.launcher.home.api.provider.CmHomeContract;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
@@ -211,23 +215,63 @@ public class CardDataImage extends PublishableCard {
      * @return A list of all currently live and published CardDataImages for this application only.
      */
     public static List<CardDataImage> getAllPublishedCardDataImages(Context context) {
+        return getAllPublishedCardDataImages(context,
+                                             CmHomeContract.CardDataImageContract.CONTENT_URI);
+    }
+
+    /**
+     * @hide
+     *
+     * Retrieves all currently published CardDataImages from the given content Uri.
+     *
+     * <b>This is intended to be an internal method. Please use one of the helper methods to
+     * retrieve CardDataImages.</b>
+     * @param context A Context object to retrieve the ContentResolver.
+     * @param contentUri The ContentUri of the images being queried for.
+     * @return A list of all currently published CardDataImages at the given Uri.
+     */
+    public static List<CardDataImage> getAllPublishedCardDataImages(Context context,
+                                                                    Uri contentUri) {
+        return getAllPublishedCardDataImages(context, contentUri, null);
+    }
+
+    /**
+     * @hide
+     *
+     * Retrieves all currently published CardDataImages from the given content Uri, allowing the
+     * query to be cancelled.
+     *
+     * <b>This is intended to be an internal method. Please use one of the helper methods to
+     * retrieve CardDataImages.</b>
+     * @param context A Context object to retrieve the ContentResolver.
+     * @param contentUri The ContentUri of the images being queried for.
+     * @param cancellationSignal A signal to cancel the query, or null.
+     * @return A list of all currently published CardDataImages at the given Uri.
+     */
+    public static List<CardDataImage> getAllPublishedCardDataImages(Context context,
+                                                                    Uri contentUri,
+                                                                    CancellationSignal
+                                                                            cancellationSignal) {
         ContentResolver contentResolver = context.getContentResolver();
         Cursor cursor = null;
         try {
-            cursor = contentResolver.query(CmHomeContract.CardDataImageContract.CONTENT_URI,
+            cursor = contentResolver.query(contentUri,
                                            CmHomeContract.CardDataImageContract.PROJECTION_ALL,
                                            null,
                                            null,
-                                           null);
+                                           null,
+                                           cancellationSignal);
             // Catching all Exceptions, since we can't be sure what the extension will do.
         } catch (Exception e) {
             Log.e(TAG, "Error querying for CardDatas, ContentProvider threw an exception for uri:" +
-                       " " + CmHomeContract.CardDataImageContract.CONTENT_URI, e);
+                       " " + contentUri, e);
         }
 
         List<CardDataImage> allImages = getAllCardDataImagesFromCursor(cursor,
-                               CmHomeContract.CardDataImageContract.CONTENT_URI.getAuthority());
-        cursor.close();
+                                                                       contentUri.getAuthority());
+        if (cursor != null) {
+            cursor.close();
+        }
         return allImages;
     }
 
@@ -236,10 +280,10 @@ public class CardDataImage extends PublishableCard {
         List<CardDataImage> allImages = new ArrayList<CardDataImage>();
 
         if (cursor != null) {
+            CursorRowMapper rowMapper = new CursorRowMapper(cursor, authority);
             while (cursor.moveToNext()) {
-                CardDataImage image = createFromCurrentCursorRow(cursor);
+                CardDataImage image = rowMapper.createFromCurrentRow();
                 if (image != null) {
-                    image.setAuthority(authority);
                     allImages.add(image);
                 }
             }
@@ -265,37 +309,115 @@ public class CardDataImage extends PublishableCard {
         if (cursor == null) {
             throw new IllegalArgumentException("'cursor' cannot be null!");
         }
-        CardDataImage cardImage = createFromCurrentCursorRow(cursor);
-        if (cardImage != null && !TextUtils.isEmpty(authority)) {
-            cardImage.setAuthority(authority);
-        }
-        return cardImage;
+        return new CursorRowMapper(cursor, authority).createFromCurrentRow();
     }
 
-    private static CardDataImage createFromCurrentCursorRow(Cursor cursor) {
-        // Can't work with a cursor in this state
-        if (cursor.isClosed() || cursor.isAfterLast()) return null;
-
-        int cardDataId = cursor.getInt(
-                cursor.getColumnIndex(CmHomeContract.CardDataImageContract.CARD_DATA_ID_COL));
-        String imageUriString = cursor.getString(
-                cursor.getColumnIndex(CmHomeContract.CardDataImageContract.IMAGE_URI_COL));
-        int imageId = cursor
-                .getInt(cursor.getColumnIndex(CmHomeContract.CardDataImageContract._ID));
-        String internalId = cursor.getString(
-                cursor.getColumnIndex(CmHomeContract.CardDataImageContract.INTERNAL_ID_COL));
-        String imageLabel = cursor.getString(
-                cursor.getColumnIndex(CmHomeContract.CardDataImageContract.IMAGE_LABEL_COL));
-
-        if (!TextUtils.isEmpty(imageUriString)) {
-            CardDataImage image = new CardDataImage(cardDataId, Uri.parse(imageUriString));
-            image.setId(imageId);
-            image.setInternalId(internalId);
-            image.setImageLabel(imageLabel);
+    /**
+     * @hide
+     *
+     * Creates CardDataImages from the rows of a Cursor containing CardDataImage data. The column
+     * indexes are looked up once when the mapper is created, so that mapping each row does not
+     * need to look up any column by name.
+     *
+     * <b>This is intended to be an internal class. Please use one of the helper methods to
+     * retrieve CardDataImages.</b>
+     */
+    public static final class CursorRowMapper {
+        private final Cursor mCursor;
+        private final String mAuthority;
+        private final int    mIdIndex;
+        private final int    mCardDataIdIndex;
+        private final int    mImageUriIndex;
+        private final int    mInternalIdIndex;
+        private final int    mImageLabelIndex;
+
+        /**
+         * @param cursor A Cursor containing CardDataImage data. The mapper must not be used
+         *               after the cursor has been closed.
+         * @param authority The authority of the ContentProvider that the cursor originated
+         *                  from, or null if unknown.
+         */
+        public CursorRowMapper(Cursor cursor, String authority) {
+            mCursor = cursor;
+            mAuthority = authority;
+            mIdIndex = cursor.getColumnIndex(CmHomeContract.CardDataImageContract._ID);
+            mCardDataIdIndex =
+                    cursor.getColumnIndex(CmHomeContract.CardDataImageContract.CARD_DATA_ID_COL);
+            mImageUriIndex =
+                    cursor.getColumnIndex(CmHomeContract.CardDataImageContract.IMAGE_URI_COL);
+            mInternalIdIndex =
+                    cursor.getColumnIndex(CmHomeContract.CardDataImageContract.INTERNAL_ID_COL);
+            mImageLabelIndex =
+                    cursor.getColumnIndex(CmHomeContract.CardDataImageContract.IMAGE_LABEL_COL);
+        }
+
+        /**
+         * @return A CardDataImage containing the data from the current row of the cursor, or
+         *         null if the row has no image.
+         */
+        public CardDataImage createFromCurrentRow() {
+            Cursor cursor = mCursor;
+            // Can't work with a cursor in this state
+            if (cursor.isClosed() || cursor.isAfterLast()) return null;
+
+            String imageUriString = cursor.getString(mImageUriIndex);
+            if (TextUtils.isEmpty(imageUriString)) return null;
+
+            CardDataImage image = new CardDataImage(cursor.getInt(mCardDataIdIndex),
+                                                    Uri.parse(imageUriString));
+            image.setId(cursor.getInt(mIdIndex));
+            image.setInternalId(cursor.getString(mInternalIdIndex));
+            image.setImageLabel(cursor.getString(mImageLabelIndex));
+            if (!TextUtils.isEmpty(mAuthority)) {
+                image.setAuthority(mAuthority);
+            }
             return image;
         }
+    }
 
-        return null;
+    /**
+     * @hide
+     *
+     * Writes the fields of this CardDataImage that are stored by the ContentProvider to the
+     * given stream.
+     *
+     * <b>This is intended to be an internal method.</b>
+     * @see #readFromStream(DataInputStream, String)
+     * @param out The stream to write to.
+     * @throws IOException If writing to the stream fails.
+     */
+    public void writeToStream(DataOutputStream out) throws IOException {
+        out.writeLong(getId());
+        out.writeLong(mCardDataId);
+        writeString(out, mImageUri != null ? mImageUri.toString() : null);
+        writeString(out, mInternalId);
+        writeString(out, mImageLabel);
+    }
+
+    /**
+     * @hide
+     *
+     * Reads a CardDataImage as written by {@link #writeToStream(DataOutputStream)}.
+     *
+     * <b>This is intended to be an internal method.</b>
+     * @param in The stream to read from.
+     * @param authority The authority of the ContentProvider that this image originated from.
+     * @return The CardDataImage read from the stream.
+     * @throws IOException If reading from the stream fails.
+     */
+    public static CardDataImage readFromStream(DataInputStream in, String authority)
+            throws IOException {
+        long id = in.readLong();
+        long cardDataId = in.readLong();
+        String imageUriString = readString(in);
+        CardDataImage image = new CardDataImage(cardDataId,
+                                                imageUriString != null
+                                                ? Uri.parse(imageUriString) : null);
+        image.setId(id);
+        image.setAuthority(authority);
+        image.setInternalId(readString(in));
+        image.setImageLabel(readString(in));
+        return image;
     }
 
     /**
@@ -358,25 +480,59 @@ public class CardDataImage extends PublishableCard {
 
     @Override
     public void publishSynchronous(Context context){
+        prepareForPublish(context);
+        super.publishSynchronous(context);
+    }
+
+    /**
+     * Stores the image in the image cache, if it was set as a resource or Bitmap, so that it
+     * can be published as a Uri.
+     * @param context The context of the publishing application.
+     */
+    @Override
+    void prepareForPublish(Context context) {
         // Store the current id of the linked CardData, in case it has
         // changed before publish.
         if (mLinkedCardData != null) {
             mCardDataId = mLinkedCardData.getId();
         }
 
+        prepareImage(context);
+    }
+
+    /**
+     * Stores the image in the image cache, if it was set as a resource or Bitmap. Does not
+     * depend on the linked CardData, so that the images of a card can be prepared in parallel.
+     * @param context The context of the publishing application.
+     */
+    void prepareImage(Context context) {
+        // Hold on to the Bitmap, mImageBitmap only references it weakly
+        Bitmap bitmap = null;
         if (mImageResourceId != 0) {
-            Bitmap bitmap = BitmapFactory.decodeResource(context.getResources(), mImageResourceId);
+            bitmap = BitmapFactory.decodeResource(context.getResources(), mImageResourceId);
             setImage(bitmap);
+        } else if (mImageBitmap != null) {
+            bitmap = mImageBitmap.get();
         }
 
-        if (mImageBitmap != null && mImageBitmap.get() != null) {
-            Uri uri = CmHomeContentProvider.storeBitmapInCache(mImageBitmap.get(), context);
+        if (bitmap != null) {
+            Uri uri = CmHomeContentProvider.storeBitmapInCache(bitmap, context);
             if (uri != null) {
                 setImage(uri);
             }
         }
+    }
 
-        super.publishSynchronous(context);
+    CardData getLinkedCardData() {
+        return mLinkedCardData;
+    }
+
+    @Override
+    void addPublishOperations(Context context, PublishBatch batch) {
+        prepareForPublish(context);
+        // A CardData inserted in the same batch has no id yet, refer to its insertion instead
+        batch.addPublish(this, getContentValues(), mLinkedCardData,
+                         CmHomeContract.CardDataImageContract.CARD_DATA_ID_COL);
     }
 }
 
@@ -0,0 +1,115 @@
+package org.cyanogenmod.launcher.home.api.cards;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Prepares the images of cards for publishing on a small shared pool of threads, so that all
+ * bitmaps of a card are decoded, encoded and stored in the image cache in parallel.
+ */
+final class ImagePreparer {
+    private static final int  MAX_THREADS        = 4;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private ImagePreparer() {
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            int threadCount = Math.max(1, Math.min(MAX_THREADS,
+                                       Runtime.getRuntime().availableProcessors()));
+            sExecutor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_SECONDS,
+                                               TimeUnit.SECONDS,
+                                               new LinkedBlockingQueue<Runnable>(),
+                                               new PreparerThreadFactory());
+            // Image preparation comes in bursts, don't keep idle threads around
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Runs all tasks, in parallel where possible, and returns once all of them have completed.
+     * The calling thread runs any task that no pool thread has started yet, so that it never
+     * waits on a busy pool.
+     * @param tasks The tasks to run.
+     */
+    static void runAll(List<Runnable> tasks) {
+        if (tasks.size() == 1) {
+            tasks.get(0).run();
+            return;
+        }
+
+        List<FutureTask<Void>> futures = new ArrayList<FutureTask<Void>>(tasks.size());
+        for (Runnable task : tasks) {
+            futures.add(new FutureTask<Void>(task, null));
+        }
+
+        // The calling thread takes the first task, hand all others to the pool
+        ThreadPoolExecutor executor = getExecutor();
+        for (int i = 1; i < futures.size(); i++) {
+            executor.execute(futures.get(i));
+        }
+        for (FutureTask<Void> future : futures) {
+            // Does nothing if a pool thread has already started this task
+            future.run();
+        }
+
+        boolean interrupted = false;
+        try {
+            for (FutureTask<Void> future : futures) {
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        // The images must be ready before the row is written, keep waiting
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        rethrow(e.getCause());
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void rethrow(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new RuntimeException(cause);
+    }
+
+    private static class PreparerThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "ImagePreparer #" + mCount.incrementAndGet());
+        }
+    }
+}
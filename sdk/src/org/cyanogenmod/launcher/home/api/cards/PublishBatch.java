@@ -0,0 +1,228 @@
+package org.cyanogenmod.launcher.home.api.cards;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * The ContentProvider operations that publish and unpublish a number of cards of a single
+ * ContentProvider, to be applied together with
+ * {@link android.content.ContentResolver#applyBatch(String, ArrayList)}.
+ *
+ * Cards whose rows are unchanged since they were last written are only checked for existence.
+ * If a row turns out to be missing, the whole batch fails, and the cards should be published
+ * again one by one.
+ */
+final class PublishBatch {
+    private static final int OPERATION_INSERT = 1;
+    private static final int OPERATION_UPDATE = 2;
+    private static final int OPERATION_ASSERT = 3;
+    private static final int OPERATION_DELETE = 4;
+
+    private final ArrayList<ContentProviderOperation> mOperations =
+            new ArrayList<ContentProviderOperation>();
+    // Describes each operation in mOperations, at the same index
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    // Card -> index of the operation inserting its row
+    private final IdentityHashMap<PublishableCard, Integer> mInsertIndexes =
+            new IdentityHashMap<PublishableCard, Integer>();
+
+    // The card whose request the added operations belong to
+    private PublishableCard mRequestCard;
+
+    private static class Entry {
+        final PublishableCard mRequestCard;
+        final PublishableCard mCard;
+        final int             mOperation;
+        final boolean         mContentHashValid;
+        final long            mContentHash;
+        // For deletions of images removed from a card, the card they were removed from
+        final CardData        mRemovedFrom;
+
+        Entry(PublishableCard requestCard, PublishableCard card, int operation,
+              boolean contentHashValid, long contentHash, CardData removedFrom) {
+            mRequestCard = requestCard;
+            mCard = card;
+            mOperation = operation;
+            mContentHashValid = contentHashValid;
+            mContentHash = contentHash;
+            mRemovedFrom = removedFrom;
+        }
+    }
+
+    /**
+     * Sets the card of the request that all operations added next belong to.
+     */
+    void setRequestCard(PublishableCard requestCard) {
+        mRequestCard = requestCard;
+    }
+
+    boolean isEmpty() {
+        return mOperations.isEmpty();
+    }
+
+    ArrayList<ContentProviderOperation> getOperations() {
+        return mOperations;
+    }
+
+    /**
+     * Adds the operation that writes the row of a card.
+     * @param card The card to write.
+     * @param values The content values of the card.
+     * @param referencedCard A card whose id is written to referenceColumn, or null.
+     * @param referenceColumn The column containing the id of referencedCard, or null.
+     */
+    void addPublish(PublishableCard card, ContentValues values, PublishableCard referencedCard,
+                    String referenceColumn) {
+        Integer referenceIndex = referencedCard != null ? mInsertIndexes.get(referencedCard)
+                                                        : null;
+        long contentHash = PublishableCard.hashContentValues(values);
+        // The hash does not cover a referenced id that is only known once the batch is applied
+        boolean contentHashValid = referenceIndex == null;
+
+        ContentProviderOperation.Builder builder;
+        int operation;
+        if (card.getId() == -1) {
+            builder = ContentProviderOperation.newInsert(card.getBaseUri()).withValues(values);
+            operation = OPERATION_INSERT;
+            mInsertIndexes.put(card, mOperations.size());
+        } else if (contentHashValid && card.isContentPublished(contentHash)) {
+            // Unchanged, only make sure the row still exists
+            builder = ContentProviderOperation.newAssertQuery(getItemUri(card))
+                                              .withExpectedCount(1);
+            operation = OPERATION_ASSERT;
+        } else {
+            builder = ContentProviderOperation.newUpdate(getItemUri(card)).withValues(values);
+            operation = OPERATION_UPDATE;
+        }
+
+        if (referenceIndex != null) {
+            builder.withValueBackReference(referenceColumn, referenceIndex);
+        }
+        add(builder.build(), new Entry(mRequestCard, card, operation, contentHashValid,
+                                       contentHash, null));
+    }
+
+    /**
+     * Adds the operation that writes only the changed columns of the existing row of a card.
+     * @param card The card to write, which must have a row.
+     * @param changedValues The values of the columns changed since the row was last written.
+     */
+    void addChangedColumnsUpdate(PublishableCard card, ContentValues changedValues) {
+        ContentProviderOperation operation;
+        int operationType;
+        if (changedValues.size() == 0) {
+            // Unchanged, only make sure the row still exists
+            operation = ContentProviderOperation.newAssertQuery(getItemUri(card))
+                                                .withExpectedCount(1)
+                                                .build();
+            operationType = OPERATION_ASSERT;
+        } else {
+            operation = ContentProviderOperation.newUpdate(getItemUri(card))
+                                                .withValues(changedValues)
+                                                .build();
+            operationType = OPERATION_UPDATE;
+        }
+        // The hash of the whole row is not known from the changed columns
+        add(operation, new Entry(mRequestCard, card, operationType, false, 0, null));
+    }
+
+    /**
+     * Adds the operation that deletes the row of a card, if it has one.
+     * @param card The card to delete.
+     */
+    void addDelete(PublishableCard card) {
+        addDelete(card, null);
+    }
+
+    /**
+     * Adds the operation that deletes the row of an image that was removed from a card.
+     * @param card The card the image was removed from.
+     * @param image The removed image.
+     */
+    void addRemovedImageDelete(CardData card, CardDataImage image) {
+        addDelete(image, card);
+    }
+
+    private void addDelete(PublishableCard card, CardData removedFrom) {
+        if (card.getId() == -1) {
+            return;
+        }
+        add(ContentProviderOperation.newDelete(getItemUri(card)).build(),
+            new Entry(mRequestCard, card, OPERATION_DELETE, false, 0, removedFrom));
+    }
+
+    private void add(ContentProviderOperation operation, Entry entry) {
+        mOperations.add(operation);
+        mEntries.add(entry);
+    }
+
+    private static Uri getItemUri(PublishableCard card) {
+        return ContentUris.withAppendedId(card.getBaseUri(), card.getId());
+    }
+
+    /**
+     * Stores the outcome of the applied operations in the cards.
+     * @param results The results of applying the operations of this batch.
+     * @return The cards of the requests that could not be completed by this batch, because
+     *         the row of a card to update no longer exists.
+     */
+    Set<PublishableCard> onApplied(ContentProviderResult[] results) {
+        Set<PublishableCard> incompleteRequests =
+                Collections.newSetFromMap(new IdentityHashMap<PublishableCard, Boolean>());
+        for (int i = 0; i < results.length && i < mEntries.size(); i++) {
+            Entry entry = mEntries.get(i);
+            ContentProviderResult result = results[i];
+            switch (entry.mOperation) {
+                case OPERATION_INSERT:
+                    if (result.uri != null) {
+                        entry.mCard.onInserted(ContentUris.parseId(result.uri),
+                                               entry.mContentHashValid, entry.mContentHash);
+                    } else {
+                        incompleteRequests.add(entry.mRequestCard);
+                    }
+                    break;
+                case OPERATION_UPDATE:
+                    if (result.count != null && result.count > 0) {
+                        if (entry.mContentHashValid) {
+                            entry.mCard.setPublishedContentHash(entry.mContentHash);
+                        } else {
+                            entry.mCard.clearPublishedContentHash();
+                        }
+                    } else {
+                        incompleteRequests.add(entry.mRequestCard);
+                    }
+                    break;
+                case OPERATION_DELETE:
+                    entry.mCard.onDeleted();
+                    if (entry.mRemovedFrom != null) {
+                        entry.mRemovedFrom.onRemovedImageUnpublished((CardDataImage) entry.mCard);
+                    }
+                    break;
+                default:
+                    // Asserts fail the whole batch if the row is missing
+                    break;
+            }
+        }
+        return incompleteRequests;
+    }
+
+    /**
+     * Called when applying the batch failed, so that none of its writes were committed.
+     */
+    void onFailed() {
+        for (Entry entry : mEntries) {
+            if (entry.mOperation != OPERATION_DELETE) {
+                // The changes taken for this write must be written again
+                entry.mCard.markAllContentChanged();
+            }
+        }
+    }
+}
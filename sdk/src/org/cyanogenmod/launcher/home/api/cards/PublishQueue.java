@@ -0,0 +1,235 @@
+package org.cyanogenmod.launcher.home.api.cards;
+
+import android.content.ContentProviderResult;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the publish and unpublish requests of all cards for a short time, then applies them
+ * on a dedicated worker thread with a single batch operation per ContentProvider. This way an
+ * application publishing a whole feed of cards at once makes a few ContentProvider calls,
+ * instead of a few calls per card.
+ */
+final class PublishQueue {
+    private static final String TAG = "PublishQueue";
+    // How long requests are collected before they are applied, counted from the first one.
+    private static final long FLUSH_DELAY_MS = 50;
+
+    private static PublishQueue sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    // Card -> its pending request, in the order the cards were requested. Guarded by itself.
+    private final IdentityHashMap<PublishableCard, Request> mRequests =
+            new IdentityHashMap<PublishableCard, Request>();
+    private final ArrayList<Request> mRequestOrder = new ArrayList<Request>();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Orders requests so that unpublishes are applied first, then cards before any images
+     * published on their own, so that the images can refer to cards inserted in the same batch.
+     */
+    private static final Comparator<Request> REQUEST_ORDER = new Comparator<Request>() {
+        @Override
+        public int compare(Request lhs, Request rhs) {
+            return getRank(lhs) - getRank(rhs);
+        }
+
+        private int getRank(Request request) {
+            if (!request.mPublish) {
+                return 0;
+            }
+            return request.mCard instanceof CardDataImage ? 2 : 1;
+        }
+    };
+
+    private static class Request {
+        final PublishableCard                                 mCard;
+        final boolean                                         mPublish;
+        final List<PublishableCard.OnPublishCompleteListener> mListeners =
+                new ArrayList<PublishableCard.OnPublishCompleteListener>();
+        // Listeners of earlier opposite requests for the same card, which will not be applied
+        final List<PublishableCard.OnPublishCompleteListener> mSupersededListeners =
+                new ArrayList<PublishableCard.OnPublishCompleteListener>();
+
+        Request(PublishableCard card, boolean publish) {
+            mCard = card;
+            mPublish = publish;
+        }
+    }
+
+    private PublishQueue(Context context) {
+        mContext = context;
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    static synchronized PublishQueue getInstance(Context context) {
+        if (sInstance == null) {
+            Context applicationContext = context.getApplicationContext();
+            sInstance = new PublishQueue(applicationContext != null ? applicationContext
+                                                                    : context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Requests a card to be published or unpublished. A request replaces any earlier pending
+     * request for the same card.
+     * @param card The card to publish or unpublish.
+     * @param publish True to publish the card, false to unpublish it.
+     * @param listener A listener to notify once the request has been applied, or null.
+     */
+    void enqueue(PublishableCard card, boolean publish,
+                 PublishableCard.OnPublishCompleteListener listener) {
+        synchronized (mRequests) {
+            if (mRequestOrder.isEmpty()) {
+                mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MS);
+            }
+
+            Request request = mRequests.get(card);
+            if (request == null || request.mPublish != publish) {
+                Request newRequest = new Request(card, publish);
+                if (request != null) {
+                    newRequest.mSupersededListeners.addAll(request.mSupersededListeners);
+                    newRequest.mSupersededListeners.addAll(request.mListeners);
+                    mRequestOrder.remove(request);
+                }
+                request = newRequest;
+                mRequests.put(card, request);
+                mRequestOrder.add(request);
+            }
+            if (listener != null) {
+                request.mListeners.add(listener);
+            }
+        }
+    }
+
+    private void flush() {
+        List<Request> requests;
+        synchronized (mRequests) {
+            requests = new ArrayList<Request>(mRequestOrder);
+            mRequests.clear();
+            mRequestOrder.clear();
+        }
+
+        // Each ContentProvider gets its own batch
+        Map<String, List<Request>> requestsByAuthority = new LinkedHashMap<String, List<Request>>();
+        for (Request request : requests) {
+            String authority = request.mCard.getBaseUri().getAuthority();
+            List<Request> authorityRequests = requestsByAuthority.get(authority);
+            if (authorityRequests == null) {
+                authorityRequests = new ArrayList<Request>();
+                requestsByAuthority.put(authority, authorityRequests);
+            }
+            authorityRequests.add(request);
+        }
+
+        for (Map.Entry<String, List<Request>> entry : requestsByAuthority.entrySet()) {
+            flush(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void flush(String authority, List<Request> requests) {
+        // A stable sort, requests of the same kind keep their order
+        Collections.sort(requests, REQUEST_ORDER);
+
+        PublishBatch batch = new PublishBatch();
+        Set<PublishableCard> handledCards =
+                Collections.newSetFromMap(new IdentityHashMap<PublishableCard, Boolean>());
+        for (Request request : requests) {
+            // Images of a card published in this batch are already part of it
+            if (!handledCards.add(request.mCard) || isImageOfPublishedCard(request, requests)) {
+                continue;
+            }
+
+            batch.setRequestCard(request.mCard);
+            if (request.mPublish) {
+                request.mCard.addPublishOperations(mContext, batch);
+            } else {
+                request.mCard.addUnpublishOperations(batch);
+            }
+        }
+
+        Set<PublishableCard> incompleteRequests;
+        if (batch.isEmpty()) {
+            incompleteRequests = Collections.emptySet();
+        } else {
+            try {
+                ContentProviderResult[] results = mContext.getContentResolver()
+                        .applyBatch(authority, batch.getOperations());
+                incompleteRequests = batch.onApplied(results);
+            // Catching all Exceptions, since we can't be sure what the extension will do.
+            } catch (Exception e) {
+                Log.w(TAG, "Unable to apply batch for authority: " + authority
+                           + ", applying requests one by one.", e);
+                batch.onFailed();
+                incompleteRequests = null;
+            }
+        }
+
+        for (Request request : requests) {
+            boolean success;
+            if (incompleteRequests == null || incompleteRequests.contains(request.mCard)) {
+                // A row was missing or the batch failed, fall back to a separate publish
+                success = applySynchronously(request);
+            } else if (request.mPublish) {
+                success = request.mCard.getId() != -1;
+            } else {
+                success = true;
+            }
+
+            for (PublishableCard.OnPublishCompleteListener listener : request.mListeners) {
+                listener.onPublishComplete(request.mCard, success);
+            }
+            for (PublishableCard.OnPublishCompleteListener listener
+                    : request.mSupersededListeners) {
+                listener.onPublishComplete(request.mCard, false);
+            }
+        }
+    }
+
+    private boolean applySynchronously(Request request) {
+        if (request.mPublish) {
+            request.mCard.publishSynchronous(mContext);
+            return request.mCard.getId() != -1;
+        }
+        return request.mCard.unpublish(mContext);
+    }
+
+    private static boolean isImageOfPublishedCard(Request request, List<Request> requests) {
+        if (!request.mPublish || !(request.mCard instanceof CardDataImage)) {
+            return false;
+        }
+
+        CardData linkedCard = ((CardDataImage) request.mCard).getLinkedCardData();
+        if (linkedCard == null) {
+            return false;
+        }
+        for (Request otherRequest : requests) {
+            if (otherRequest.mCard == linkedCard && otherRequest.mPublish) {
+                return linkedCard.hasImage((CardDataImage) request.mCard);
+            }
+        }
+        return false;
+    }
+}
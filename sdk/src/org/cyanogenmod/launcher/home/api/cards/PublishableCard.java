@@ -6,17 +6,26 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
 import org.cyanogenmod.launcher.home.api.provider.CmHomeContract;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Represents any card that can be published to the host application,
  * to be displayed to the user.
  */
 public abstract class PublishableCard {
     private String TAG = "PublishableCard";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
     private long   mId = -1;
     /**
      * An instance of the database contract class to be used when publishing. To be set by
@@ -24,6 +33,16 @@ public abstract class PublishableCard {
      */
     protected CmHomeContract.ICmHomeContract mICmHomeContract;
     private String mAuthority;
+    /**
+     * The content hash of the values last written to the row of this card, if
+     * mPublishedContentHashValid is set.
+     */
+    private long    mPublishedContentHash;
+    private boolean mPublishedContentHashValid;
+
+    // FNV-1a 64 bit parameters
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME        = 0x100000001b3L;
 
     public PublishableCard(CmHomeContract.ICmHomeContract contract) {
         mICmHomeContract = contract;
@@ -60,10 +79,69 @@ public abstract class PublishableCard {
      * @param context The context of the publishing application.
      */
     public void publish(Context context) {
-        new PublishCardTask(this, context).execute();
+        publish(context, null);
+    }
+
+    /**
+     * Publish this PublishableCard to CM Home, to be immediately be displayed to the user.
+     * This operation is completed asynchronously, together with the publishes and unpublishes
+     * of other cards requested at about the same time. If this card has been previously
+     * published, it will be updated in place.
+     * @param context The context of the publishing application.
+     * @param listener A listener to notify once the card has been published, or null.
+     */
+    public void publish(Context context, OnPublishCompleteListener listener) {
+        PublishQueue.getInstance(context).enqueue(this, true, listener);
     }
 
+    /**
+     * Unpublishes this PublishableCard asynchronously, together with the publishes and
+     * unpublishes of other cards requested at about the same time.
+     * @see org.cyanogenmod.launcher.home.api.cards.PublishableCard#unpublish(Context)
+     * @param context A Context of the publishing application.
+     * @param listener A listener to notify once the card has been unpublished, or null.
+     */
+    public void unpublishAsync(Context context, OnPublishCompleteListener listener) {
+        PublishQueue.getInstance(context).enqueue(this, false, listener);
+    }
+
+    /**
+     * Publish this PublishableCard to CM Home synchronously. If this card has been previously
+     * published, it will be updated in place. A card whose content has not changed since it was
+     * last published is not written again.
+     * @param context The context of the publishing application.
+     */
     public void publishSynchronous(Context context) {
+        // Cards that track their changes only need to write the changed columns of their row
+        ContentValues changedValues = takeChangedContentValues();
+        if (changedValues != null && getId() != -1
+            && updateChangedColumns(context, changedValues)) {
+            return;
+        }
+
+        if (!writeRow(context)) {
+            // Nothing is known about the row anymore, write all columns next time
+            markAllContentChanged();
+        }
+    }
+
+    /**
+     * Writes all columns of the row of this card, inserting a new row if needed.
+     * @param context The context of the publishing application.
+     * @return True if the row was written, or was already up to date.
+     */
+    private boolean writeRow(Context context) {
+        ContentValues values = getContentValues();
+        long contentHash = hashContentValues(values);
+        if (isContentPublished(contentHash) && isPublished(context)) {
+            // Nothing changed since the last write, skip it and the change notification
+            return true;
+        }
+
+        if (upsert(context, values, contentHash)) {
+            return true;
+        }
+
         boolean updated = false;
         // If we have an ID, try to update that row first.
         if (getId() != -1) {
@@ -75,8 +153,6 @@ public abstract class PublishableCard {
         if (!updated) {
             ContentResolver contentResolver = context.getContentResolver();
 
-            ContentValues values = getContentValues();
-
             Uri result = null;
             try {
                 result = contentResolver.insert(getBaseUri(), values);
@@ -90,25 +166,236 @@ public abstract class PublishableCard {
 
             if (result != null) {
                 // Store the resulting ID
-                setId(Long.parseLong(result.getLastPathSegment()));
+                onInserted(Long.parseLong(result.getLastPathSegment()), true, contentHash);
+                updated = true;
             }
         }
+        return updated;
+    }
+
+    /**
+     * Updates only the given columns of the existing row of this card.
+     * @param context The context of the publishing application.
+     * @param changedValues The values of the columns changed since the row was last written.
+     * @return True if the row exists and was updated, false otherwise.
+     */
+    private boolean updateChangedColumns(Context context, ContentValues changedValues) {
+        if (changedValues.size() == 0) {
+            return isPublished(context);
+        }
+
+        ContentResolver contentResolver = context.getContentResolver();
+        int rows = 0;
+        try {
+            rows = contentResolver.update(ContentUris.withAppendedId(getBaseUri(), getId()),
+                                          changedValues,
+                                          null,
+                                          null);
+        // Catching all Exceptions, since we can't be sure what the extension will do.
+        } catch (Exception e) {
+            Log.e(TAG,
+                  "Error updating PublishableCard, ContentProvider threw an exception for uri:" +
+                  " " + getBaseUri(), e);
+        }
+
+        if (rows > 0) {
+            // The hash of the whole row is no longer known
+            clearPublishedContentHash();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the row of this card with a single call to the ContentProvider, updating the
+     * existing row or inserting a new one.
+     * @param context The context of the publishing application.
+     * @param values The content values of this card.
+     * @param contentHash The content hash of values.
+     * @return True if the row was written, false if the ContentProvider does not support upserts
+     *         or failed, in which case the row should be written with separate calls instead.
+     */
+    private boolean upsert(Context context, ContentValues values, long contentHash) {
+        Uri uri = getId() != -1 ? ContentUris.withAppendedId(getBaseUri(), getId())
+                                : getBaseUri();
+        Bundle extras = new Bundle();
+        extras.putParcelable(CmHomeContract.EXTRA_VALUES, values);
+
+        Bundle result = null;
+        try {
+            result = context.getContentResolver().call(uri, CmHomeContract.METHOD_UPSERT,
+                                                       uri.toString(), extras);
+        // Catching all Exceptions, since we can't be sure what the extension will do.
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to upsert PublishableCard, ContentProvider threw an exception " +
+                       "for uri: " + uri, e);
+        }
+
+        if (result == null || !result.containsKey(CmHomeContract.EXTRA_ROW_ID)) {
+            return false;
+        }
+
+        if (result.getBoolean(CmHomeContract.EXTRA_INSERTED)) {
+            onInserted(result.getLong(CmHomeContract.EXTRA_ROW_ID), true, contentHash);
+        } else {
+            setPublishedContentHash(contentHash);
+        }
+        return true;
     }
 
     protected abstract ContentValues getContentValues();
 
+    /**
+     * @hide
+     *
+     * Computes a hash of the content of this card, as it would be written to the
+     * ContentProvider. Two cards with the same content have the same hash, in any process.
+     * <p><b>This is intended to be an internal SDK method.</b></p>
+     * @return The content hash of this card.
+     */
+    public long getContentHash() {
+        return hashContentValues(getContentValues());
+    }
+
+    /**
+     * Computes a hash of the given values that does not depend on their order.
+     */
+    protected static long hashContentValues(ContentValues values) {
+        List<String> keys = new ArrayList<String>(values.keySet());
+        Collections.sort(keys);
+
+        long hash = FNV_OFFSET_BASIS;
+        for (String key : keys) {
+            hash = hashString(hash, key);
+            Object value = values.get(key);
+            hash = value != null ? hashString(hash, value.toString()) : hashLong(hash, -1);
+        }
+        return hash;
+    }
+
+    /**
+     * Adds a String to a hash started with {@link #hashContentValues(ContentValues)}.
+     */
+    protected static long hashString(long hash, String string) {
+        for (int i = 0; i < string.length(); i++) {
+            hash = (hash ^ string.charAt(i)) * FNV_PRIME;
+        }
+        // Separate consecutive Strings, so that "ab", "c" differs from "a", "bc"
+        return hashLong(hash, string.length());
+    }
+
+    /**
+     * Adds a long to a hash started with {@link #hashContentValues(ContentValues)}.
+     */
+    protected static long hashLong(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+    /**
+     * Retrieves the values of the columns changed since the row of this card was last written,
+     * and starts tracking changes anew. Cards that do not track their changes return null.
+     * @return The changed values, or null if all values must be written.
+     */
+    ContentValues takeChangedContentValues() {
+        return null;
+    }
+
+    /**
+     * Marks all columns as changed, after writing the row of this card failed.
+     */
+    void markAllContentChanged() {
+    }
+
+    void clearPublishedContentHash() {
+        mPublishedContentHashValid = false;
+    }
+
+    void setPublishedContentHash(long contentHash) {
+        mPublishedContentHash = contentHash;
+        mPublishedContentHashValid = true;
+    }
+
+    /**
+     * Checks whether values with the given content hash were the last written to the row of
+     * this card.
+     */
+    boolean isContentPublished(long contentHash) {
+        return mPublishedContentHashValid && mPublishedContentHash == contentHash;
+    }
+
+    /**
+     * Called once a row has been inserted for this card.
+     * @param id The id of the new row.
+     * @param contentHashValid Whether contentHash matches the values that were inserted.
+     * @param contentHash The content hash of the values that were inserted.
+     */
+    void onInserted(long id, boolean contentHashValid, long contentHash) {
+        setId(id);
+        mPublishedContentHashValid = contentHashValid;
+        mPublishedContentHash = contentHash;
+    }
+
+    /**
+     * Called once the row of this card has been deleted.
+     */
+    void onDeleted() {
+        clearPublishedContentHash();
+    }
+
+    /**
+     * Prepares this card to be written to the ContentProvider, for example by storing its
+     * images. Called on the publishing thread before the content values are retrieved.
+     * @param context The context of the publishing application.
+     */
+    void prepareForPublish(Context context) {
+    }
+
+    /**
+     * Adds the operations that publish this card to a batch.
+     * @param context The context of the publishing application.
+     * @param batch The batch to add the operations to.
+     */
+    void addPublishOperations(Context context, PublishBatch batch) {
+        prepareForPublish(context);
+        ContentValues changedValues = takeChangedContentValues();
+        if (changedValues != null && getId() != -1) {
+            batch.addChangedColumnsUpdate(this, changedValues);
+        } else {
+            batch.addPublish(this, getContentValues(), null, null);
+        }
+    }
+
+    /**
+     * Adds the operations that unpublish this card to a batch.
+     * @param batch The batch to add the operations to.
+     */
+    void addUnpublishOperations(PublishBatch batch) {
+        batch.addDelete(this);
+    }
+
     protected boolean update(Context context) {
         if (getId() == -1) {
             return false;
         }
 
+        ContentValues values = getContentValues();
+        long contentHash = hashContentValues(values);
+        if (isContentPublished(contentHash) && isPublished(context)) {
+            // Nothing changed since the last write, skip it and the change notification
+            return true;
+        }
+
         ContentResolver contentResolver = context.getContentResolver();
         int rows = 0;
         try {
             rows = contentResolver.update(ContentUris.withAppendedId(
                                                       getBaseUri(),
                                                       getId()),
-                                              getContentValues(),
+                                              values,
                                               null,
                                               null);
         // Catching all Exceptions, since we can't be sure what the extension will do.
@@ -119,7 +406,11 @@ public abstract class PublishableCard {
         }
 
         // We must have updated at least one row
-        return rows > 0;
+        if (rows > 0) {
+            setPublishedContentHash(contentHash);
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -130,12 +421,21 @@ public abstract class PublishableCard {
      * @return true if the unpublish was successful, false otherwise.
      */
     public boolean unpublish(Context context) {
+        return delete(context) > 0;
+    }
+
+    /**
+     * Deletes the row that represents this card, if it has been published.
+     * @param context A Context of the publishing application.
+     * @return The number of rows deleted, or -1 if the ContentProvider failed.
+     */
+    protected int delete(Context context) {
         if (getId() == -1) {
-            return false;
+            return 0;
         }
 
         ContentResolver contentResolver = context.getContentResolver();
-        int rows = 0;
+        int rows = -1;
         try {
             rows = contentResolver.delete(ContentUris.withAppendedId(
                                                       getBaseUri(),
@@ -149,7 +449,10 @@ public abstract class PublishableCard {
                   "uri:" + getBaseUri(), e);
         }
 
-        return rows > 0;
+        if (rows > 0) {
+            onDeleted();
+        }
+        return rows;
     }
 
     /**
@@ -187,7 +490,34 @@ public abstract class PublishableCard {
         return cursorCount > 0;
     }
 
-    private Uri getBaseUri() {
+    /**
+     * Writes a String that may be null to the given stream. Unlike
+     * {@link DataOutputStream#writeUTF(String)}, Strings of any length are supported.
+     */
+    protected static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a String written by {@link #writeString(DataOutputStream, String)}.
+     */
+    protected static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    Uri getBaseUri() {
         Uri theUri = mICmHomeContract.getContentUri();
 
         // If this PublishableCard has an authority set, use that in the URI.
@@ -197,19 +527,17 @@ public abstract class PublishableCard {
         return theUri;
     }
 
-    private static class PublishCardTask extends AsyncTask<Void, Void, Void> {
-        PublishableCard mPublishableCard;
-        Context mContext;
-
-        public PublishCardTask(PublishableCard card, Context context) {
-            mPublishableCard = card;
-            mContext = context;
-        }
-
-        @Override
-        protected Void doInBackground(Void... voids) {
-            mPublishableCard.publishSynchronous(mContext);
-            return null;
-        }
+    /**
+     * Listener for the completion of an asynchronous publish or unpublish.
+     */
+    public interface OnPublishCompleteListener {
+        /**
+         * Called on a background thread once a card has been published or unpublished.
+         * @param card The card that was published or unpublished.
+         * @param success True if the card was written to or removed from CM Home, false
+         *                otherwise, including when the request was replaced by a later
+         *                opposite request for the same card.
+         */
+        public void onPublishComplete(PublishableCard card, boolean success);
     }
 }
@@ -1,11 +1,17 @@
 package org.cyanogenmod.launcher.home.api.db;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 import org.cyanogenmod.launcher.home.api.provider.CmHomeContract;
 
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * <p>Creates the SQLite database that backs CMHomeContentProvider.</p>
  * <p><b>This class is intended to be internal, and does not need to be referenced by
@@ -14,18 +20,31 @@ import org.cyanogenmod.launcher.home.api.provider.CmHomeContract;
 public class CmHomeDatabaseHelper extends SQLiteOpenHelper {
     private static final String DATABASE_NAME          = "CmHomeAPI.db";
     private static final String TAG                    = "CmHomeDatabaseHelper";
-    private static final int    DATABASE_VERSION       = 1;
+
+    // Version 1: Initial schema.
+    // Version 2: Added the ImageReference table.
+    // Version 3: Dates stored as INTEGER epoch millis, added indexes.
+    // Version 4: Added the ChangeLog table.
+    // Version 5: Added the database id entry to the ChangeLog.
+    private static final int    DATABASE_VERSION       = 5;
+
+    /**
+     * An SQL expression for the current time in milliseconds since the epoch.
+     */
+    private static final String NOW_EPOCH_MILLIS =
+            "(CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER))";
+
     public static final  String CARD_DATA_TABLE_NAME   = "CardData";
     private static final String CARD_DATA_TABLE_CREATE =
             "CREATE TABLE " + CARD_DATA_TABLE_NAME +
             "(" + CmHomeContract.CardDataContract._ID + " INTEGER PRIMARY KEY NOT NULL," +
             CmHomeContract.CardDataContract.INTERNAL_ID_COL + " TEXT DEFAULT NULL," +
             CmHomeContract.CardDataContract.REASON_COL + " TEXT DEFAULT NULL," +
-            CmHomeContract.CardDataContract.DATE_CONTENT_CREATED_COL + " TEXT NOT NULL," +
-            CmHomeContract.CardDataContract.DATE_CREATED_COL + " TEXT DEFAULT CURRENT_TIMESTAMP " +
-            "NOT NULL," +
-            CmHomeContract.CardDataContract.LAST_MODIFIED_COL + " TEXT DEFAULT CURRENT_TIMESTAMP " +
-            "NOT NULL," +
+            CmHomeContract.CardDataContract.DATE_CONTENT_CREATED_COL + " INTEGER NOT NULL," +
+            CmHomeContract.CardDataContract.DATE_CREATED_COL + " INTEGER DEFAULT " +
+            NOW_EPOCH_MILLIS + " NOT NULL," +
+            CmHomeContract.CardDataContract.LAST_MODIFIED_COL + " INTEGER DEFAULT " +
+            NOW_EPOCH_MILLIS + " NOT NULL," +
             CmHomeContract.CardDataContract.CONTENT_SOURCE_IMAGE_URI_COL + " TEXT DEFAULT NULL," +
             CmHomeContract.CardDataContract.AVATAR_IMAGE_URI_COL + " TEXT DEFAULT NULL," +
             CmHomeContract.CardDataContract.TITLE_TEXT_COL + " TEXT NOT NULL," +
@@ -39,15 +58,26 @@ public class CmHomeDatabaseHelper extends SQLiteOpenHelper {
             CmHomeContract.CardDataContract.ACTION_2_URI_COL + " TEXT DEFAULT NULL," +
             CmHomeContract.CardDataContract.PRIORITY_COL + " INTEGER DEFAULT NULL);";
 
+    private static final String CARD_DATA_UPDATE_TIME_TRIGGER_NAME =
+            "card_data_update_time_trigger";
     private static final String CARD_DATA_UPDATE_TIME_TRIGGER =
-            "CREATE TRIGGER card_data_update_time_trigger " +
+            "CREATE TRIGGER " + CARD_DATA_UPDATE_TIME_TRIGGER_NAME + " " +
             "AFTER UPDATE ON " + CARD_DATA_TABLE_NAME + " FOR EACH ROW" +
             " BEGIN " +
             "UPDATE " + CARD_DATA_TABLE_NAME +
-            " SET " + "last_modified" + " = CURRENT_TIMESTAMP" +
+            " SET " + "last_modified" + " = " + NOW_EPOCH_MILLIS +
             " WHERE " + "_id" + " = old._id;" +
             " END";
 
+    private static final String CARD_DATA_INTERNAL_ID_INDEX_CREATE =
+            "CREATE INDEX IF NOT EXISTS card_data_internal_id_index ON " + CARD_DATA_TABLE_NAME +
+            "(" + CmHomeContract.CardDataContract.INTERNAL_ID_COL + ");";
+
+    private static final String CARD_DATA_PRIORITY_INDEX_CREATE =
+            "CREATE INDEX IF NOT EXISTS card_data_priority_index ON " + CARD_DATA_TABLE_NAME +
+            "(" + CmHomeContract.CardDataContract.PRIORITY_COL + ", " +
+            CmHomeContract.CardDataContract.DATE_CREATED_COL + ");";
+
     public static final  String CARD_DATA_IMAGE_TABLE_NAME   = "CardDataImage";
     private static final String CARD_DATA_IMAGE_TABLE_CREATE =
             "CREATE TABLE " + CARD_DATA_IMAGE_TABLE_NAME +
@@ -60,25 +90,251 @@ public class CmHomeDatabaseHelper extends SQLiteOpenHelper {
             ") REFERENCES " +
             CARD_DATA_TABLE_NAME + "(" + CmHomeContract.CardDataContract._ID + "));";
 
+    private static final String CARD_DATA_IMAGE_CARD_DATA_ID_INDEX_CREATE =
+            "CREATE INDEX IF NOT EXISTS card_data_image_card_data_id_index ON " +
+            CARD_DATA_IMAGE_TABLE_NAME +
+            "(" + CmHomeContract.CardDataImageContract.CARD_DATA_ID_COL + ");";
+
+    private static final String CARD_DATA_IMAGE_INTERNAL_ID_INDEX_CREATE =
+            "CREATE INDEX IF NOT EXISTS card_data_image_internal_id_index ON " +
+            CARD_DATA_IMAGE_TABLE_NAME +
+            "(" + CmHomeContract.CardDataImageContract.INTERNAL_ID_COL + ");";
+
+    public static final  String IMAGE_REFERENCE_TABLE_NAME   = "ImageReference";
+    private static final String IMAGE_REFERENCE_TABLE_CREATE =
+            "CREATE TABLE " + IMAGE_REFERENCE_TABLE_NAME +
+            "(" + CmHomeContract.ImageReferenceContract.FILE_NAME_COL +
+            " TEXT PRIMARY KEY NOT NULL," +
+            CmHomeContract.ImageReferenceContract.REF_COUNT_COL + " INTEGER NOT NULL DEFAULT 0);";
+
+    public static final  String CHANGE_LOG_TABLE_NAME   = "ChangeLog";
+    private static final String CHANGE_LOG_TABLE_CREATE =
+            "CREATE TABLE " + CHANGE_LOG_TABLE_NAME +
+            "(" + CmHomeContract.ChangeLogContract._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+            CmHomeContract.ChangeLogContract.ITEM_TYPE_COL + " TEXT NOT NULL," +
+            CmHomeContract.ChangeLogContract.ROW_ID_COL + " INTEGER NOT NULL," +
+            CmHomeContract.ChangeLogContract.OPERATION_COL + " INTEGER NOT NULL," +
+            "UNIQUE(" + CmHomeContract.ChangeLogContract.ITEM_TYPE_COL + ", " +
+            CmHomeContract.ChangeLogContract.ROW_ID_COL + ") ON CONFLICT REPLACE);";
+
+    private static final String CHANGE_LOG_OPERATION_INDEX_CREATE =
+            "CREATE INDEX IF NOT EXISTS change_log_operation_index ON " + CHANGE_LOG_TABLE_NAME +
+            "(" + CmHomeContract.ChangeLogContract.OPERATION_COL + ", " +
+            CmHomeContract.ChangeLogContract._ID + ");";
+
     private static final String DROP_TABLE_STATEMENT = "DROP TABLE IF EXISTS";
 
+    /**
+     * The default size, in bytes, of the memory mapped I/O region. Set to 0 to disable memory
+     * mapped I/O.
+     */
+    public static final long DEFAULT_MMAP_SIZE = 4 * 1024 * 1024;
+
+    private final long mMmapSize;
+
     public CmHomeDatabaseHelper(Context context) {
+        this(context, DEFAULT_MMAP_SIZE);
+    }
+
+    /**
+     * Creates a CmHomeDatabaseHelper with the given connection settings.
+     * @param context The Context of the application that hosts the database.
+     * @param mmapSize The size in bytes of the memory mapped I/O region, or 0 to disable it.
+     */
+    public CmHomeDatabaseHelper(Context context, long mmapSize) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mMmapSize = mmapSize;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase database) {
+        // Write-ahead logging lets CM Home read while this application writes, and vice versa.
+        database.enableWriteAheadLogging();
+        configureConnection(database);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase database) {
+        // Foreign keys are enabled here rather than in onConfigure, so that onUpgrade can
+        // rebuild tables without tripping over them.
+        database.setForeignKeyConstraintsEnabled(true);
+    }
+
+    private void configureConnection(SQLiteDatabase database) {
+        // With write-ahead logging, NORMAL is still durable across application crashes.
+        // Use rawQuery, since PRAGMA statements that return a row cannot be run by execSQL.
+        closeCursor(database.rawQuery("PRAGMA synchronous = NORMAL", null));
+        closeCursor(database.rawQuery("PRAGMA mmap_size = " + mMmapSize, null));
+    }
+
+    private static void closeCursor(Cursor cursor) {
+        if (cursor != null) {
+            cursor.moveToFirst();
+            cursor.close();
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase database) {
         database.execSQL(CARD_DATA_TABLE_CREATE);
         database.execSQL(CARD_DATA_UPDATE_TIME_TRIGGER);
+        database.execSQL(CARD_DATA_INTERNAL_ID_INDEX_CREATE);
+        database.execSQL(CARD_DATA_PRIORITY_INDEX_CREATE);
         database.execSQL(CARD_DATA_IMAGE_TABLE_CREATE);
+        database.execSQL(CARD_DATA_IMAGE_CARD_DATA_ID_INDEX_CREATE);
+        database.execSQL(CARD_DATA_IMAGE_INTERNAL_ID_INDEX_CREATE);
+        database.execSQL(IMAGE_REFERENCE_TABLE_CREATE);
+        database.execSQL(CHANGE_LOG_TABLE_CREATE);
+        database.execSQL(CHANGE_LOG_OPERATION_INDEX_CREATE);
+        insertDatabaseId(database);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
-        Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion +
+        Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+
+        if (oldVersion < 2) {
+            database.execSQL(IMAGE_REFERENCE_TABLE_CREATE);
+            populateImageReferences(database);
+        }
+
+        if (oldVersion < 3) {
+            upgradeCardDataDatesToEpochMillis(database);
+            database.execSQL(CARD_DATA_INTERNAL_ID_INDEX_CREATE);
+            database.execSQL(CARD_DATA_PRIORITY_INDEX_CREATE);
+            database.execSQL(CARD_DATA_IMAGE_CARD_DATA_ID_INDEX_CREATE);
+            database.execSQL(CARD_DATA_IMAGE_INTERNAL_ID_INDEX_CREATE);
+        }
+
+        if (oldVersion < 4) {
+            // Hosts start from a full load, so existing rows need no change entries.
+            database.execSQL(CHANGE_LOG_TABLE_CREATE);
+            database.execSQL(CHANGE_LOG_OPERATION_INDEX_CREATE);
+        }
+
+        if (oldVersion < 5) {
+            insertDatabaseId(database);
+        }
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase database, int oldVersion, int newVersion) {
+        Log.w(TAG, "Downgrading database from version " + oldVersion + " to " + newVersion +
                    ". All existing data will be destroyed.");
+        database.execSQL("DROP TRIGGER IF EXISTS " + CARD_DATA_UPDATE_TIME_TRIGGER_NAME);
         database.execSQL(DROP_TABLE_STATEMENT + " " + CARD_DATA_TABLE_NAME);
         database.execSQL(DROP_TABLE_STATEMENT + " " + CARD_DATA_IMAGE_TABLE_NAME);
+        database.execSQL(DROP_TABLE_STATEMENT + " " + IMAGE_REFERENCE_TABLE_NAME);
+        database.execSQL(DROP_TABLE_STATEMENT + " " + CHANGE_LOG_TABLE_NAME);
         onCreate(database);
     }
+
+    /**
+     * Records a new random id for this database in the ChangeLog. Hosts keep it along with the
+     * change sequence numbers, so that they notice when the database was created again.
+     */
+    private void insertDatabaseId(SQLiteDatabase database) {
+        ContentValues values = new ContentValues();
+        values.put(CmHomeContract.ChangeLogContract.ITEM_TYPE_COL,
+                   CmHomeContract.ChangeLogContract.ITEM_TYPE_DATABASE);
+        values.put(CmHomeContract.ChangeLogContract.ROW_ID_COL, new SecureRandom().nextLong());
+        values.put(CmHomeContract.ChangeLogContract.OPERATION_COL,
+                   CmHomeContract.ChangeLogContract.OPERATION_CREATE_DATABASE);
+        database.insert(CHANGE_LOG_TABLE_NAME, null, values);
+    }
+
+    /**
+     * Counts the references to cached images held by all existing rows and stores them in the
+     * ImageReference table.
+     */
+    private void populateImageReferences(SQLiteDatabase database) {
+        Map<String, Integer> refCounts = new HashMap<String, Integer>();
+        countImageReferences(database, CARD_DATA_TABLE_NAME,
+                             new String[]{
+                                     CmHomeContract.CardDataContract.CONTENT_SOURCE_IMAGE_URI_COL,
+                                     CmHomeContract.CardDataContract.AVATAR_IMAGE_URI_COL},
+                             refCounts);
+        countImageReferences(database, CARD_DATA_IMAGE_TABLE_NAME,
+                             new String[]{CmHomeContract.CardDataImageContract.IMAGE_URI_COL},
+                             refCounts);
+
+        ContentValues values = new ContentValues();
+        for (Map.Entry<String, Integer> entry : refCounts.entrySet()) {
+            values.put(CmHomeContract.ImageReferenceContract.FILE_NAME_COL, entry.getKey());
+            values.put(CmHomeContract.ImageReferenceContract.REF_COUNT_COL, entry.getValue());
+            database.insert(IMAGE_REFERENCE_TABLE_NAME, null, values);
+        }
+    }
+
+    private void countImageReferences(SQLiteDatabase database, String table, String[] columns,
+                                      Map<String, Integer> refCounts) {
+        Cursor cursor = database.query(table, columns, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < columns.length; i++) {
+                    String filename =
+                            CmHomeContract.ImageFile.getCachedFilename(cursor.getString(i));
+                    if (filename != null) {
+                        Integer count = refCounts.get(filename);
+                        refCounts.put(filename, count == null ? 1 : count + 1);
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Rebuilds the CardData table so that all date columns are INTEGER epoch millis. Older
+     * versions stored the created and modified dates as CURRENT_TIMESTAMP strings.
+     */
+    private void upgradeCardDataDatesToEpochMillis(SQLiteDatabase database) {
+        String newTable = CARD_DATA_TABLE_NAME + "_new";
+        String copiedColumns = CmHomeContract.CardDataContract._ID + ", " +
+                               CmHomeContract.CardDataContract.INTERNAL_ID_COL + ", " +
+                               CmHomeContract.CardDataContract.REASON_COL + ", " +
+                               CmHomeContract.CardDataContract.CONTENT_SOURCE_IMAGE_URI_COL + ", " +
+                               CmHomeContract.CardDataContract.AVATAR_IMAGE_URI_COL + ", " +
+                               CmHomeContract.CardDataContract.TITLE_TEXT_COL + ", " +
+                               CmHomeContract.CardDataContract.SMALL_TEXT_COL + ", " +
+                               CmHomeContract.CardDataContract.CATEGORY_COL + ", " +
+                               CmHomeContract.CardDataContract.BODY_TEXT_COL + ", " +
+                               CmHomeContract.CardDataContract.CARD_CLICK_URI_COL + ", " +
+                               CmHomeContract.CardDataContract.ACTION_1_TEXT_COL + ", " +
+                               CmHomeContract.CardDataContract.ACTION_1_URI_COL + ", " +
+                               CmHomeContract.CardDataContract.ACTION_2_TEXT_COL + ", " +
+                               CmHomeContract.CardDataContract.ACTION_2_URI_COL + ", " +
+                               CmHomeContract.CardDataContract.PRIORITY_COL;
+
+        // Build the new table under a temporary name and swap it in, so that the foreign key
+        // references from CardDataImage keep pointing at CardData.
+        database.execSQL("DROP TRIGGER IF EXISTS " + CARD_DATA_UPDATE_TIME_TRIGGER_NAME);
+        database.execSQL(CARD_DATA_TABLE_CREATE.replaceFirst(CARD_DATA_TABLE_NAME, newTable));
+        database.execSQL("INSERT INTO " + newTable + "(" + copiedColumns + ", " +
+                         CmHomeContract.CardDataContract.DATE_CONTENT_CREATED_COL + ", " +
+                         CmHomeContract.CardDataContract.DATE_CREATED_COL + ", " +
+                         CmHomeContract.CardDataContract.LAST_MODIFIED_COL + ") " +
+                         "SELECT " + copiedColumns + ", " +
+                         epochMillisFromLegacyDate(
+                                 CmHomeContract.CardDataContract.DATE_CONTENT_CREATED_COL) + ", " +
+                         epochMillisFromLegacyDate(
+                                 CmHomeContract.CardDataContract.DATE_CREATED_COL) + ", " +
+                         epochMillisFromLegacyDate(
+                                 CmHomeContract.CardDataContract.LAST_MODIFIED_COL) +
+                         " FROM " + CARD_DATA_TABLE_NAME);
+        database.execSQL(DROP_TABLE_STATEMENT + " " + CARD_DATA_TABLE_NAME);
+        database.execSQL("ALTER TABLE " + newTable + " RENAME TO " + CARD_DATA_TABLE_NAME);
+        database.execSQL(CARD_DATA_UPDATE_TIME_TRIGGER);
+    }
+
+    /**
+     * Builds an SQL expression converting a legacy date column to epoch millis. The column may
+     * hold either a "YYYY-MM-DD HH:MM:SS" timestamp or a number of milliseconds stored as text.
+     */
+    private static String epochMillisFromLegacyDate(String column) {
+        return "CASE WHEN " + column + " GLOB '[0-9][0-9][0-9][0-9]-*'" +
+               " THEN CAST((julianday(" + column + ") - 2440587.5) * 86400000 AS INTEGER)" +
+               " ELSE CAST(" + column + " AS INTEGER) END";
+    }
 }
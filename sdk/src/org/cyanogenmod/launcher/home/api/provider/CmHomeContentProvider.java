@@ -1,36 +1,58 @@
 package org.cyanogenmod.launcher.home.api.provider;
 
+import android.content.ComponentName;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.pm.PackageManager;
+import android.content.pm.ProviderInfo;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.Binder;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.provider.BaseColumns;
 import android.text.TextUtils;
 import android.util.Log;
 
 import org.cyanogenmod.launcher.home.api.db.CmHomeDatabaseHelper;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigInteger;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static org.cyanogenmod.launcher.home.api.db.CmHomeDatabaseHelper.CARD_DATA_IMAGE_TABLE_NAME;
 import static org.cyanogenmod.launcher.home.api.db.CmHomeDatabaseHelper.CARD_DATA_TABLE_NAME;
+import static org.cyanogenmod.launcher.home.api.db.CmHomeDatabaseHelper.CHANGE_LOG_TABLE_NAME;
+import static org.cyanogenmod.launcher.home.api.db.CmHomeDatabaseHelper.IMAGE_REFERENCE_TABLE_NAME;
 
 /**
  * <p>The ContentProvider that shares data for all types of Cards to CM Home.</p>
@@ -59,14 +81,85 @@ public class CmHomeContentProvider extends ContentProvider {
      */
     public final static String IMAGE_FILE_CACHE_DIR = "CardDataImageCache";
 
+    /**
+     * How long to wait after an image loses its last reference before deleting the file. A
+     * publish that is about to reference the same image can claim it again within this window.
+     */
+    private static final long IMAGE_CACHE_SWEEP_DELAY_MS = 10 * 1000;
+
+    /**
+     * Optional integer meta-data for this provider, setting the size in bytes of the memory
+     * mapped I/O region used by the database. Set to 0 to disable memory mapped I/O.
+     */
+    public final static String MMAP_SIZE_META_DATA =
+            "org.cyanogenmod.launcher.home.api.MMAP_SIZE";
+
+    /**
+     * Optional integer meta-data for this provider, setting how long in milliseconds change
+     * notifications are held back so that changes made in quick succession are sent as a single
+     * notification. Defaults to 0, which sends a notification for every changed row
+     * immediately. Only enable this if every CM Home version it is used with understands
+     * coalesced notifications, as older versions ignore them.
+     */
+    public final static String NOTIFICATION_DELAY_META_DATA =
+            "org.cyanogenmod.launcher.home.api.NOTIFICATION_DELAY_MS";
+
+    private static final int DEFAULT_NOTIFICATION_DELAY_MS = 0;
+
+    /**
+     * The most row ids listed in a single coalesced notification. Beyond this, a notification
+     * without ids is sent and CM Home reads the changes from the change log instead.
+     */
+    private static final int MAX_NOTIFICATION_IDS = 200;
+
     private static final String TAG                  = "CmHomeContentProvider";
     private static final int    CARD_DATA_LIST       = 1;
     private static final int    CARD_DATA_ITEM       = 2;
     private static final int    CARD_DATA_IMAGE_LIST = 3;
     private static final int    CARD_DATA_IMAGE_ITEM = 4;
     private static final int    IMAGE_FILE           = 5;
+    private static final int    CHANGES              = 6;
     private static UriMatcher URI_MATCHER;
 
+    /**
+     * The number of delete entries kept in the change log. Hosts that last synced before the
+     * oldest kept entry must reload all data.
+     */
+    private static final int    MAX_CHANGE_LOG_DELETES = 1000;
+
+    /**
+     * While a batch is being applied on a thread, this holds the changes made by that batch,
+     * keyed by the list Uri of the changed table. Notifications are deferred until the batch
+     * completes.
+     */
+    private final ThreadLocal<Map<Uri, PendingChanges>> mBatchChanges =
+            new ThreadLocal<Map<Uri, PendingChanges>>();
+
+    /**
+     * Changes made outside of a batch that have not been notified yet, keyed by the list Uri of
+     * the changed table. Guarded by itself.
+     */
+    private final Map<Uri, PendingChanges> mPendingChanges = new HashMap<Uri, PendingChanges>();
+    private long mNotificationDelayMs = DEFAULT_NOTIFICATION_DELAY_MS;
+    private final Runnable mNotifyPendingChangesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            notifyPendingChanges();
+        }
+    };
+
+    /**
+     * Filenames of cached images whose reference count dropped to zero, waiting to be swept.
+     */
+    private final Set<String> mUnreferencedImages = new HashSet<String>();
+    private Handler mBackgroundHandler;
+    private final Runnable mImageCacheSweepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sweepUnreferencedImages();
+        }
+    };
+
     static {
         URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
         setupUriMatcher(CmHomeContract.AUTHORITY);
@@ -88,15 +181,60 @@ public class CmHomeContentProvider extends ContentProvider {
         URI_MATCHER.addURI(CmHomeContract.AUTHORITY,
                            CmHomeContract.ImageFile.PATH + "/*",
                            IMAGE_FILE);
+        URI_MATCHER.addURI(CmHomeContract.AUTHORITY,
+                           CmHomeContract.ChangeLogContract.PATH,
+                           CHANGES);
     }
 
     @Override
     public boolean onCreate() {
         setAuthority();
-        mCmHomeDatabaseHelper = new CmHomeDatabaseHelper(getContext());
+        Bundle metaData = getProviderMetaData();
+        mCmHomeDatabaseHelper = createDatabaseHelper(metaData);
+        mNotificationDelayMs = metaData.getInt(NOTIFICATION_DELAY_META_DATA,
+                                               DEFAULT_NOTIFICATION_DELAY_MS);
+
+        HandlerThread backgroundThread = new HandlerThread(TAG + "Background",
+                                                           Process.THREAD_PRIORITY_BACKGROUND);
+        backgroundThread.start();
+        mBackgroundHandler = new Handler(backgroundThread.getLooper());
+        // Catch any files left behind by an earlier version or an interrupted sweep.
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                cleanupCardDataImageCache();
+            }
+        });
         return true;
     }
 
+    /**
+     * Retrieves the meta-data declared on this provider in the application manifest.
+     * @return The meta-data, or an empty Bundle if none is declared.
+     */
+    private Bundle getProviderMetaData() {
+        try {
+            ProviderInfo providerInfo = getContext().getPackageManager().getProviderInfo(
+                    new ComponentName(getContext(), getClass()), PackageManager.GET_META_DATA);
+            if (providerInfo.metaData != null) {
+                return providerInfo.metaData;
+            }
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Unable to read provider meta-data, using default settings.");
+        }
+        return new Bundle();
+    }
+
+    /**
+     * Creates the database helper, applying any connection settings declared as meta-data on
+     * this provider in the application manifest.
+     */
+    private CmHomeDatabaseHelper createDatabaseHelper(Bundle metaData) {
+        long mmapSize = metaData.getInt(MMAP_SIZE_META_DATA,
+                                        (int) CmHomeDatabaseHelper.DEFAULT_MMAP_SIZE);
+        return new CmHomeDatabaseHelper(getContext(), mmapSize);
+    }
+
     /**
      * The authority of the ContentProvider must be unique across all apps that implement this
      * API protocol. To resolve this, dynamically set the authority to be unique for this package
@@ -112,8 +250,11 @@ public class CmHomeContentProvider extends ContentProvider {
     public Cursor query(Uri uri, String[] projection, String selection,
                         String[] selectionArgs, String sortOrder) {
         SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
-        SQLiteDatabase db = mCmHomeDatabaseHelper.getWritableDatabase();
+        // With write-ahead logging, the framework serves queries from pooled read connections
+        // that do not wait for writes.
+        SQLiteDatabase db = mCmHomeDatabaseHelper.getReadableDatabase();
 
+        String limit = null;
         int uriMatch = URI_MATCHER.match(uri);
         switch (uriMatch) {
             case CARD_DATA_LIST:
@@ -138,12 +279,30 @@ public class CmHomeContentProvider extends ContentProvider {
                 queryBuilder.appendWhere(CmHomeContract.CardDataImageContract._ID + " = " + uri
                         .getLastPathSegment());
                 break;
+            case CHANGES:
+                queryBuilder.setTables(CHANGE_LOG_TABLE_NAME);
+                String since = uri.getQueryParameter(
+                        CmHomeContract.ChangeLogContract.SINCE_QUERY_PARAMETER);
+                if (!TextUtils.isEmpty(since)) {
+                    try {
+                        queryBuilder.appendWhere(CmHomeContract.ChangeLogContract._ID + " > "
+                                                 + Long.parseLong(since));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid change token: " + since);
+                    }
+                }
+                limit = uri.getQueryParameter(
+                        CmHomeContract.ChangeLogContract.LIMIT_QUERY_PARAMETER);
+                if (TextUtils.isEmpty(sortOrder)) {
+                    sortOrder = CmHomeContract.ChangeLogContract.SORT_ORDER_DEFAULT;
+                }
+                break;
             default:
                 throw new IllegalArgumentException("Unsupported URI for insertion: " + uri);
         }
 
-        Cursor cursor =
-                queryBuilder.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+        Cursor cursor = queryBuilder.query(db, projection, selection, selectionArgs, null, null,
+                                           sortOrder, limit);
 
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
         return cursor;
@@ -169,84 +328,117 @@ public class CmHomeContentProvider extends ContentProvider {
         SQLiteDatabase db = mCmHomeDatabaseHelper.getWritableDatabase();
         int updateCount = 0;
         int uriMatch = URI_MATCHER.match(uri);
+        String table;
+        String where;
 
         switch (uriMatch) {
             case CARD_DATA_LIST:
-                updateCount = db.update(CARD_DATA_TABLE_NAME,
-                                    values,
-                                    selection,
-                                    selectionArgs);
+                table = CARD_DATA_TABLE_NAME;
+                where = selection;
                 break;
             case CARD_DATA_ITEM:
-                String idStr = uri.getLastPathSegment();
-                String where = CmHomeContract.CardDataContract._ID + " = " + idStr;
+                table = CARD_DATA_TABLE_NAME;
+                where = CmHomeContract.CardDataContract._ID + " = " + uri.getLastPathSegment();
                 if (!TextUtils.isEmpty(selection)) {
                     where += " AND " + selection;
                 }
-                updateCount = db.update(CARD_DATA_TABLE_NAME,
-                                            values,
-                                            where,
-                                            selectionArgs);
                 break;
             case CARD_DATA_IMAGE_LIST:
-                updateCount = db.update(CARD_DATA_IMAGE_TABLE_NAME,
-                                    values,
-                                    selection,
-                                    selectionArgs);
+                table = CARD_DATA_IMAGE_TABLE_NAME;
+                where = selection;
                 break;
             case CARD_DATA_IMAGE_ITEM:
-                idStr = uri.getLastPathSegment();
-                where = CmHomeContract.CardDataImageContract._ID + " = " + idStr;
+                table = CARD_DATA_IMAGE_TABLE_NAME;
+                where = CmHomeContract.CardDataImageContract._ID + " = " + uri
+                        .getLastPathSegment();
                 if (!TextUtils.isEmpty(selection)) {
                     where += " AND " + selection;
                 }
-                updateCount = db.update(CARD_DATA_IMAGE_TABLE_NAME,
-                                        values,
-                                        where,
-                                        selectionArgs);
                 break;
             default:
                 throw new IllegalArgumentException("Unsupported URI for update: " + uri);
         }
 
+        // Only the image columns being written can change image references
+        String[] imageColumns = getImageColumnsInValues(table, values);
+
+        db.beginTransaction();
+        try {
+            if (imageColumns.length > 0) {
+                releaseImageReferences(db, table, imageColumns, where, selectionArgs, values);
+            }
+            recordChanges(db, table, where, selectionArgs,
+                          CmHomeContract.ChangeLogContract.OPERATION_INSERT_OR_UPDATE);
+            updateCount = db.update(table, values, where, selectionArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
         if (updateCount > 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri, uriMatch, getItemId(uri, uriMatch), false);
         }
-        cleanupCardDataImageCache();
         return updateCount;
     }
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         int uriMatch = URI_MATCHER.match(uri);
+        String table;
+        int conflictAlgorithm;
 
-        SQLiteDatabase db = mCmHomeDatabaseHelper.getWritableDatabase();
         switch (uriMatch) {
             case CARD_DATA_LIST:
-                long id = db.insert(CARD_DATA_TABLE_NAME,
-                                    null,
-                                    values);
-                return getUriForId(id, uri);
+                table = CARD_DATA_TABLE_NAME;
+                conflictAlgorithm = SQLiteDatabase.CONFLICT_NONE;
+                break;
             case CARD_DATA_ITEM:
-                id = db.insertWithOnConflict(CARD_DATA_TABLE_NAME,
-                                                  null,
-                                                  values,
-                                                  SQLiteDatabase.CONFLICT_REPLACE);
-                return getUriForId(id, uri);
+                table = CARD_DATA_TABLE_NAME;
+                conflictAlgorithm = SQLiteDatabase.CONFLICT_REPLACE;
+                break;
             case CARD_DATA_IMAGE_LIST:
-                id = db.insert(CARD_DATA_IMAGE_TABLE_NAME,
-                                    null,
-                                    values);
-                return getUriForId(id, uri);
+                table = CARD_DATA_IMAGE_TABLE_NAME;
+                conflictAlgorithm = SQLiteDatabase.CONFLICT_NONE;
+                break;
             case CARD_DATA_IMAGE_ITEM:
-                id = db.insertWithOnConflict(CARD_DATA_IMAGE_TABLE_NAME,
-                                                  null,
-                                                  values,
-                                                  SQLiteDatabase.CONFLICT_REPLACE);
-                return getUriForId(id, uri);
+                table = CARD_DATA_IMAGE_TABLE_NAME;
+                conflictAlgorithm = SQLiteDatabase.CONFLICT_REPLACE;
+                break;
             default:
                 throw new IllegalArgumentException("Unsupported URI for insertion: " + uri);
         }
+
+        SQLiteDatabase db = mCmHomeDatabaseHelper.getWritableDatabase();
+        long id;
+        db.beginTransaction();
+        try {
+            // A replaced row releases the images it referenced
+            if (conflictAlgorithm == SQLiteDatabase.CONFLICT_REPLACE
+                && values.containsKey(BaseColumns._ID)) {
+                releaseImageReferences(db, table, getImageColumns(table),
+                                       BaseColumns._ID + " = ?",
+                                       new String[]{values.getAsString(BaseColumns._ID)},
+                                       null);
+            }
+
+            if (conflictAlgorithm == SQLiteDatabase.CONFLICT_NONE) {
+                id = db.insert(table, null, values);
+            } else {
+                id = db.insertWithOnConflict(table, null, values, conflictAlgorithm);
+            }
+
+            if (id > 0) {
+                for (String column : getImageColumnsInValues(table, values)) {
+                    adjustImageReference(db, values.getAsString(column), 1);
+                }
+                recordChange(db, table, id,
+                             CmHomeContract.ChangeLogContract.OPERATION_INSERT_OR_UPDATE);
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            db.endTransaction();
+        }
+        return getUriForId(id, uri, uriMatch, false);
     }
 
     @Override
@@ -255,65 +447,308 @@ public class CmHomeContentProvider extends ContentProvider {
         int deleteCount = 0;
         int uriMatch = URI_MATCHER.match(uri);
         String idStr = uri.getLastPathSegment();
+        String table;
+        String where;
 
         switch (uriMatch) {
             case CARD_DATA_LIST:
-                deleteCount = db.delete(CARD_DATA_TABLE_NAME,
-                                            selection,
-                                            selectionArgs);
+                table = CARD_DATA_TABLE_NAME;
+                where = selection;
                 break;
             case CARD_DATA_ITEM:
-                String where = CmHomeContract.CardDataContract._ID + " = " + idStr;
+                table = CARD_DATA_TABLE_NAME;
+                where = CmHomeContract.CardDataContract._ID + " = " + idStr;
                 if (!TextUtils.isEmpty(selection)) {
                     where += " AND " + selection;
                 }
-                deleteCount = db.delete(CARD_DATA_TABLE_NAME,
-                                            where,
-                                            selectionArgs);
                 break;
             case CARD_DATA_IMAGE_LIST:
-                deleteCount = db.delete(CARD_DATA_IMAGE_TABLE_NAME,
-                                        selection,
-                                        selectionArgs);
+                table = CARD_DATA_IMAGE_TABLE_NAME;
+                where = selection;
                 break;
             case CARD_DATA_IMAGE_ITEM:
+                table = CARD_DATA_IMAGE_TABLE_NAME;
                 where = CmHomeContract.CardDataImageContract._ID + " = " + idStr;
                 if (!TextUtils.isEmpty(selection)) {
                     where += " AND " + selection;
                 }
-                deleteCount = db.delete(CARD_DATA_IMAGE_TABLE_NAME,
-                                        where,
-                                        selectionArgs);
                 break;
             default:
                 throw new IllegalArgumentException("Unsupported URI for update: " + uri);
         }
 
-        if (deleteCount == 1) {
+        db.beginTransaction();
+        try {
+            if (CARD_DATA_TABLE_NAME.equals(table)) {
+                // Foreign keys are enforced, so remove the images of these cards first
+                deleteCardDataImagesForCardDatas(db, where, selectionArgs);
+            }
+            releaseImageReferences(db, table, getImageColumns(table), where, selectionArgs, null);
+            recordChanges(db, table, where, selectionArgs,
+                          CmHomeContract.ChangeLogContract.OPERATION_DELETE);
+            deleteCount = db.delete(table, where, selectionArgs);
+            if (deleteCount > 0) {
+                pruneChangeLog(db);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (deleteCount > 0) {
             if(uriMatch == CARD_DATA_ITEM) {
                 // Notifies for a delete
                 getUriForId(Long.parseLong(idStr),
                             Uri.withAppendedPath(CmHomeContract.CONTENT_URI,
-                                    CmHomeContract.CardDataContract.SINGLE_ROW_DELETE_URI_PATH));
-            }
-            if(uriMatch == CARD_DATA_IMAGE_ITEM) {
+                                    CmHomeContract.CardDataContract.SINGLE_ROW_DELETE_URI_PATH),
+                            uriMatch, true);
+            } else if(uriMatch == CARD_DATA_IMAGE_ITEM) {
                 // Notifies for a delete
                 getUriForId(Long.parseLong(idStr),
                             Uri.withAppendedPath(CmHomeContract.CONTENT_URI,
-                                    CmHomeContract.CardDataImageContract.SINGLE_ROW_DELETE_URI_PATH));
+                                    CmHomeContract.CardDataImageContract.SINGLE_ROW_DELETE_URI_PATH),
+                            uriMatch, true);
+            } else {
+                notifyChange(uri, uriMatch, -1, true);
             }
-        } else if (deleteCount > 1) {
-            getContext().getContentResolver().notifyChange(uri, null);
         }
-        cleanupCardDataImageCache();
         return deleteCount;
     }
 
-    private Uri getUriForId(long id, Uri uri) {
+    /**
+     * Inserts all rows in a single transaction. Only the list Uris for CardData and
+     * CardDataImage are supported. A single change notification listing the inserted rows is
+     * sent once all rows have been inserted.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        int uriMatch = URI_MATCHER.match(uri);
+        if (uriMatch != CARD_DATA_LIST && uriMatch != CARD_DATA_IMAGE_LIST) {
+            throw new IllegalArgumentException("Unsupported URI for bulk insertion: " + uri);
+        }
+
+        SQLiteDatabase db = mCmHomeDatabaseHelper.getWritableDatabase();
+        boolean outermostBatch = !isApplyingBatch();
+        Map<Uri, PendingChanges> batchChanges = beginBatch();
+        int insertCount = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                insert(uri, value);
+                insertCount++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if (outermostBatch) {
+                mBatchChanges.remove();
+            }
+        }
+
+        if (outermostBatch) {
+            notifyChanges(batchChanges);
+        }
+        return insertCount;
+    }
+
+    /**
+     * Handles {@link CmHomeContract#METHOD_UPSERT}, so that a card can be published with a
+     * single call whether or not its row still exists.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!CmHomeContract.METHOD_UPSERT.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+
+        // Unlike the other operations, call() is not guarded by the provider permissions. As
+        // for those, the application owning this provider may always write to it.
+        String writePermission = getWritePermission();
+        if (writePermission != null && Binder.getCallingUid() != Process.myUid()) {
+            getContext().enforceCallingPermission(writePermission, "Writing to " + arg);
+        }
+
+        ContentValues values = extras != null ?
+                (ContentValues) extras.getParcelable(CmHomeContract.EXTRA_VALUES) : null;
+        if (arg == null || values == null) {
+            throw new IllegalArgumentException("Upsert requires a Uri and values");
+        }
+        return upsert(Uri.parse(arg), values);
+    }
+
+    private Bundle upsert(Uri uri, ContentValues values) {
+        int uriMatch = URI_MATCHER.match(uri);
+        boolean itemUri;
+        switch (uriMatch) {
+            case CARD_DATA_ITEM:
+            case CARD_DATA_IMAGE_ITEM:
+                itemUri = true;
+                break;
+            case CARD_DATA_LIST:
+            case CARD_DATA_IMAGE_LIST:
+                itemUri = false;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported URI for upsert: " + uri);
+        }
+
+        SQLiteDatabase db = mCmHomeDatabaseHelper.getWritableDatabase();
+        long id;
+        boolean inserted = false;
+        // Hold back the change notifications until the transaction has been committed, so that
+        // a host querying in response reads the new row
+        boolean outermostBatch = !isApplyingBatch();
+        Map<Uri, PendingChanges> batchChanges = beginBatch();
+        db.beginTransaction();
+        try {
+            if (itemUri && update(uri, values, null, null) > 0) {
+                id = ContentUris.parseId(uri);
+            } else {
+                // The row never existed or was deleted, it gets a new id
+                id = ContentUris.parseId(insert(getListUriForMatch(uriMatch), values));
+                inserted = true;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if (outermostBatch) {
+                mBatchChanges.remove();
+            }
+        }
+
+        if (outermostBatch) {
+            notifyChanges(batchChanges);
+        }
+
+        Bundle result = new Bundle();
+        result.putLong(CmHomeContract.EXTRA_ROW_ID, id);
+        result.putBoolean(CmHomeContract.EXTRA_INSERTED, inserted);
+        return result;
+    }
+
+    /**
+     * Applies all operations in a single transaction. If any operation fails,
+     * none of the operations are committed. Change notifications are coalesced into a single
+     * notification per table, sent after the transaction has been committed.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mCmHomeDatabaseHelper.getWritableDatabase();
+        boolean outermostBatch = !isApplyingBatch();
+        Map<Uri, PendingChanges> batchChanges = beginBatch();
+        ContentProviderResult[] results;
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if (outermostBatch) {
+                mBatchChanges.remove();
+            }
+        }
+
+        if (outermostBatch) {
+            notifyChanges(batchChanges);
+        }
+        return results;
+    }
+
+    private Map<Uri, PendingChanges> beginBatch() {
+        Map<Uri, PendingChanges> batchChanges = mBatchChanges.get();
+        if (batchChanges == null) {
+            batchChanges = new HashMap<Uri, PendingChanges>();
+            mBatchChanges.set(batchChanges);
+        }
+        return batchChanges;
+    }
+
+    private boolean isApplyingBatch() {
+        return mBatchChanges.get() != null;
+    }
+
+    /**
+     * Notify listeners of a change to the given Uri. Notifications are coalesced into a single
+     * notification per table while a batch is being applied on this thread. Outside of a batch,
+     * each change is notified on its own, unless a notification delay has been configured.
+     * @param uri The Uri that changed.
+     * @param uriMatch The match of the Uri that was originally operated on.
+     * @param id The id of the row that changed, or -1 if unknown or more than one row changed.
+     * @param deleted True if the row was deleted.
+     */
+    private void notifyChange(Uri uri, int uriMatch, long id, boolean deleted) {
+        Map<Uri, PendingChanges> batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            addPendingChange(batchChanges, uri, uriMatch, id, deleted);
+        } else if (mNotificationDelayMs > 0) {
+            synchronized (mPendingChanges) {
+                if (mPendingChanges.isEmpty()) {
+                    mBackgroundHandler.postDelayed(mNotifyPendingChangesRunnable,
+                                                   mNotificationDelayMs);
+                }
+                addPendingChange(mPendingChanges, uri, uriMatch, id, deleted);
+            }
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    private void addPendingChange(Map<Uri, PendingChanges> changes, Uri uri, int uriMatch,
+                                  long id, boolean deleted) {
+        Uri listUri = getListUriForMatch(uriMatch);
+        PendingChanges pendingChanges = changes.get(listUri);
+        if (pendingChanges == null) {
+            pendingChanges = new PendingChanges(listUri);
+            changes.put(listUri, pendingChanges);
+        }
+        pendingChanges.add(uri, id, deleted);
+    }
+
+    private void notifyPendingChanges() {
+        Map<Uri, PendingChanges> changes;
+        synchronized (mPendingChanges) {
+            changes = new HashMap<Uri, PendingChanges>(mPendingChanges);
+            mPendingChanges.clear();
+        }
+        notifyChanges(changes);
+    }
+
+    private void notifyChanges(Map<Uri, PendingChanges> changes) {
+        for (PendingChanges pendingChanges : changes.values()) {
+            getContext().getContentResolver().notifyChange(pendingChanges.getNotificationUri(),
+                                                           null);
+        }
+    }
+
+    /**
+     * @return The id of the row the given Uri points to, or -1 for a list Uri.
+     */
+    private long getItemId(Uri uri, int uriMatch) {
+        if (uriMatch == CARD_DATA_ITEM || uriMatch == CARD_DATA_IMAGE_ITEM) {
+            return ContentUris.parseId(uri);
+        }
+        return -1;
+    }
+
+    private Uri getListUriForMatch(int uriMatch) {
+        switch (uriMatch) {
+            case CARD_DATA_LIST:
+            case CARD_DATA_ITEM:
+                return CmHomeContract.CardDataContract.CONTENT_URI;
+            case CARD_DATA_IMAGE_LIST:
+            case CARD_DATA_IMAGE_ITEM:
+                return CmHomeContract.CardDataImageContract.CONTENT_URI;
+            default:
+                throw new IllegalArgumentException("Unsupported URI match: " + uriMatch);
+        }
+    }
+
+    private Uri getUriForId(long id, Uri uri, int uriMatch, boolean deleted) {
         if (id > 0) {
             Uri itemUri = ContentUris.withAppendedId(uri, id);
             // notify all listeners of changes:
-            getContext().getContentResolver().notifyChange(itemUri, null);
+            notifyChange(itemUri, uriMatch, id, deleted);
             return itemUri;
         }
         throw new IllegalArgumentException("Problem while inserting into uri: " + uri);
@@ -331,14 +766,248 @@ public class CmHomeContentProvider extends ContentProvider {
                 return CmHomeContract.CardDataImageContract.CONTENT_TYPE;
             case CARD_DATA_IMAGE_ITEM:
                 return CmHomeContract.CardDataImageContract.CONTENT_ITEM_TYPE;
+            case CHANGES:
+                return CmHomeContract.ChangeLogContract.CONTENT_TYPE;
             default:
                 throw new IllegalArgumentException("Unsupported URI: " + uri);
         }
     }
 
+    /**
+     * Deletes all CardDataImage rows that belong to the CardData rows matching the where clause.
+     */
+    private void deleteCardDataImagesForCardDatas(SQLiteDatabase db, String cardDataWhere,
+                                                  String[] whereArgs) {
+        String imageWhere = CmHomeContract.CardDataImageContract.CARD_DATA_ID_COL + " IN (" +
+                            "SELECT " + CmHomeContract.CardDataContract._ID +
+                            " FROM " + CARD_DATA_TABLE_NAME +
+                            (TextUtils.isEmpty(cardDataWhere) ? "" : " WHERE " + cardDataWhere) +
+                            ")";
+        releaseImageReferences(db, CARD_DATA_IMAGE_TABLE_NAME,
+                               getImageColumns(CARD_DATA_IMAGE_TABLE_NAME),
+                               imageWhere, whereArgs, null);
+        recordChanges(db, CARD_DATA_IMAGE_TABLE_NAME, imageWhere, whereArgs,
+                      CmHomeContract.ChangeLogContract.OPERATION_DELETE);
+        db.delete(CARD_DATA_IMAGE_TABLE_NAME, imageWhere, whereArgs);
+    }
+
+    private static String getChangeLogItemType(String table) {
+        if (CARD_DATA_TABLE_NAME.equals(table)) {
+            return CmHomeContract.ChangeLogContract.ITEM_TYPE_CARD_DATA;
+        }
+        return CmHomeContract.ChangeLogContract.ITEM_TYPE_CARD_DATA_IMAGE;
+    }
+
+    /**
+     * Records a change in the change log for every row in the table matching the where clause.
+     */
+    private void recordChanges(SQLiteDatabase db, String table, String where,
+                               String[] whereArgs, int operation) {
+        String sql = "INSERT OR REPLACE INTO " + CHANGE_LOG_TABLE_NAME + "("
+                     + CmHomeContract.ChangeLogContract.ITEM_TYPE_COL + ", "
+                     + CmHomeContract.ChangeLogContract.ROW_ID_COL + ", "
+                     + CmHomeContract.ChangeLogContract.OPERATION_COL + ") "
+                     + "SELECT '" + getChangeLogItemType(table) + "', " + BaseColumns._ID + ", "
+                     + operation + " FROM " + table
+                     + (TextUtils.isEmpty(where) ? "" : " WHERE " + where);
+        if (whereArgs != null) {
+            db.execSQL(sql, whereArgs);
+        } else {
+            db.execSQL(sql);
+        }
+    }
+
+    /**
+     * Records a change in the change log for a single row.
+     */
+    private void recordChange(SQLiteDatabase db, String table, long rowId, int operation) {
+        ContentValues values = new ContentValues();
+        values.put(CmHomeContract.ChangeLogContract.ITEM_TYPE_COL, getChangeLogItemType(table));
+        values.put(CmHomeContract.ChangeLogContract.ROW_ID_COL, rowId);
+        values.put(CmHomeContract.ChangeLogContract.OPERATION_COL, operation);
+        db.insertWithOnConflict(CHANGE_LOG_TABLE_NAME, null, values,
+                                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Keeps only the newest {@link #MAX_CHANGE_LOG_DELETES} delete entries. When older entries
+     * are dropped, a reset entry is stored with the sequence number of the newest dropped entry,
+     * so that hosts that last synced before it know to reload everything.
+     */
+    private void pruneChangeLog(SQLiteDatabase db) {
+        String deletesSelection = CmHomeContract.ChangeLogContract.OPERATION_COL + " = "
+                                  + CmHomeContract.ChangeLogContract.OPERATION_DELETE;
+        long deleteCount = DatabaseUtils.queryNumEntries(db, CHANGE_LOG_TABLE_NAME,
+                                                         deletesSelection);
+        if (deleteCount <= MAX_CHANGE_LOG_DELETES) return;
+
+        long newestPruned = DatabaseUtils.longForQuery(db,
+                "SELECT " + CmHomeContract.ChangeLogContract._ID
+                + " FROM " + CHANGE_LOG_TABLE_NAME + " WHERE " + deletesSelection
+                + " ORDER BY " + CmHomeContract.ChangeLogContract._ID + " ASC"
+                + " LIMIT 1 OFFSET " + (deleteCount - MAX_CHANGE_LOG_DELETES - 1),
+                null);
+
+        db.delete(CHANGE_LOG_TABLE_NAME,
+                  deletesSelection + " AND " + CmHomeContract.ChangeLogContract._ID + " <= ?",
+                  new String[]{Long.toString(newestPruned)});
+
+        ContentValues values = new ContentValues();
+        values.put(CmHomeContract.ChangeLogContract._ID, newestPruned);
+        values.put(CmHomeContract.ChangeLogContract.ITEM_TYPE_COL,
+                   CmHomeContract.ChangeLogContract.ITEM_TYPE_RESET);
+        values.put(CmHomeContract.ChangeLogContract.ROW_ID_COL, 0);
+        values.put(CmHomeContract.ChangeLogContract.OPERATION_COL,
+                   CmHomeContract.ChangeLogContract.OPERATION_RESET);
+        db.insertWithOnConflict(CHANGE_LOG_TABLE_NAME, null, values,
+                                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    private static String[] getImageColumns(String table) {
+        if (CARD_DATA_TABLE_NAME.equals(table)) {
+            return new String[]{CmHomeContract.CardDataContract.CONTENT_SOURCE_IMAGE_URI_COL,
+                                CmHomeContract.CardDataContract.AVATAR_IMAGE_URI_COL};
+        }
+        return new String[]{CmHomeContract.CardDataImageContract.IMAGE_URI_COL};
+    }
+
+    private static String[] getImageColumnsInValues(String table, ContentValues values) {
+        List<String> columns = new ArrayList<String>();
+        for (String column : getImageColumns(table)) {
+            if (values.containsKey(column)) {
+                columns.add(column);
+            }
+        }
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    /**
+     * Moves the image references held by the rows matching the where clause. The references
+     * held in imageColumns are released, and if newValues is not null, a reference to the new
+     * value of each of those columns is taken for every matching row.
+     */
+    private void releaseImageReferences(SQLiteDatabase db, String table, String[] imageColumns,
+                                        String where, String[] whereArgs,
+                                        ContentValues newValues) {
+        Cursor cursor = db.query(table, imageColumns, where, whereArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < imageColumns.length; i++) {
+                    adjustImageReference(db, cursor.getString(i), -1);
+                    if (newValues != null) {
+                        adjustImageReference(db, newValues.getAsString(imageColumns[i]), 1);
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Adjusts the reference count for the cached image that the given Uri points to. If the
+     * image loses its last reference, a sweep is scheduled to delete the cached file.
+     * @param uriString A Uri String as stored in an image column. Uris that do not point to a
+     *                  cached image are ignored.
+     * @param delta The amount to change the reference count by.
+     */
+    private void adjustImageReference(SQLiteDatabase db, String uriString, int delta) {
+        String filename = CmHomeContract.ImageFile.getCachedFilename(uriString);
+        if (filename == null) return;
+
+        SQLiteStatement updateStatement = db.compileStatement(
+                "UPDATE " + IMAGE_REFERENCE_TABLE_NAME + " SET "
+                + CmHomeContract.ImageReferenceContract.REF_COUNT_COL + " = "
+                + CmHomeContract.ImageReferenceContract.REF_COUNT_COL + " + ?"
+                + " WHERE " + CmHomeContract.ImageReferenceContract.FILE_NAME_COL + " = ?");
+        int updated;
+        try {
+            updateStatement.bindLong(1, delta);
+            updateStatement.bindString(2, filename);
+            updated = updateStatement.executeUpdateDelete();
+        } finally {
+            updateStatement.close();
+        }
+
+        if (updated == 0) {
+            if (delta > 0) {
+                // First reference to this image
+                ContentValues values = new ContentValues();
+                values.put(CmHomeContract.ImageReferenceContract.FILE_NAME_COL, filename);
+                values.put(CmHomeContract.ImageReferenceContract.REF_COUNT_COL, delta);
+                db.insert(IMAGE_REFERENCE_TABLE_NAME, null, values);
+            }
+            return;
+        }
+
+        if (delta < 0) {
+            long refCount = DatabaseUtils.longForQuery(db,
+                    "SELECT " + CmHomeContract.ImageReferenceContract.REF_COUNT_COL
+                    + " FROM " + IMAGE_REFERENCE_TABLE_NAME
+                    + " WHERE " + CmHomeContract.ImageReferenceContract.FILE_NAME_COL + " = ?",
+                    new String[]{filename});
+            if (refCount <= 0) {
+                scheduleImageCacheSweep(filename);
+            }
+        }
+    }
+
+    private void scheduleImageCacheSweep(String filename) {
+        synchronized (mUnreferencedImages) {
+            boolean sweepPending = !mUnreferencedImages.isEmpty();
+            mUnreferencedImages.add(filename);
+            if (!sweepPending) {
+                mBackgroundHandler.postDelayed(mImageCacheSweepRunnable,
+                                                    IMAGE_CACHE_SWEEP_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Deletes the cached files for all images that have lost their last reference,
+     * unless they have been referenced again or touched by a recent publish since.
+     */
+    private void sweepUnreferencedImages() {
+        Set<String> candidates;
+        synchronized (mUnreferencedImages) {
+            candidates = new HashSet<String>(mUnreferencedImages);
+            mUnreferencedImages.clear();
+        }
+
+        File imageCacheDir = new File(getContext().getFilesDir(), IMAGE_FILE_CACHE_DIR);
+        long cutoff = System.currentTimeMillis() - IMAGE_CACHE_SWEEP_DELAY_MS;
+        SQLiteDatabase db = mCmHomeDatabaseHelper.getWritableDatabase();
+        String unreferenced = CmHomeContract.ImageReferenceContract.FILE_NAME_COL + " = ? AND "
+                              + CmHomeContract.ImageReferenceContract.REF_COUNT_COL + " <= 0";
+
+        for (String filename : candidates) {
+            File file = new File(imageCacheDir, filename);
+            if (file.lastModified() > cutoff) {
+                // Just stored again, it is likely about to be referenced.
+                scheduleImageCacheSweep(filename);
+                continue;
+            }
+
+            db.beginTransaction();
+            try {
+                int deleted = db.delete(IMAGE_REFERENCE_TABLE_NAME, unreferenced,
+                                        new String[]{filename});
+                if (deleted > 0) {
+                    file.delete();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
     /**
      * For all files in the CardDataImage cache directory, if
      * they are not represented in the database, delete them.
+     *
+     * This scans every row and every cached file, so it is only run once when the provider is
+     * created. Files released by writes are removed by the reference counted sweep instead.
      */
     private void cleanupCardDataImageCache() {
         Set<String> filenames = new HashSet<String>();
@@ -357,6 +1026,7 @@ public class CmHomeContentProvider extends ContentProvider {
                 filenames.add(filename);
             }
         }
+        cursor.close();
 
         // Handle CardData image fields
         String[] cardDataProjection = {CmHomeContract.CardDataContract.AVATAR_IMAGE_URI_COL,
@@ -383,6 +1053,7 @@ public class CmHomeContentProvider extends ContentProvider {
                 filenames.add(filename);
             }
         }
+        cursor.close();
 
         // Delete all files that do not exist in the database
         File internalStorageDir = getContext().getFilesDir();
@@ -391,8 +1062,10 @@ public class CmHomeContentProvider extends ContentProvider {
         if (imageCacheDir != null) {
             File[] imageFiles = imageCacheDir.listFiles();
             if (imageFiles != null) {
+                long cutoff = System.currentTimeMillis() - IMAGE_CACHE_SWEEP_DELAY_MS;
                 for (File file : imageFiles) {
-                    if (!filenames.contains(file.getName())) {
+                    // Skip recently stored files, a row may be about to reference them.
+                    if (!filenames.contains(file.getName()) && file.lastModified() < cutoff) {
                         file.delete();
                     }
                 }
@@ -400,44 +1073,13 @@ public class CmHomeContentProvider extends ContentProvider {
         }
     }
 
-    /**
-     * Generates a String representing the MD5 hash of the input byte array.
-     * @param bytes A byte array
-     * @return A String representation of the MD5 hash of the input byte array
-     */
-    private static String hashBytesMD5(byte[] bytes) {
-        // Compute the hash
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            md.update(bytes, 0, bytes.length);
-            String hash = new BigInteger(1, md.digest()).toString(16);
-            return hash;
-        } catch (NoSuchAlgorithmException e) {
-            Log.w(TAG, "Unable to compute MD5 hash of byte array.");
-        }
-
-        // No hash computed
-        return null;
-    }
-
-    /**
-     * Check if a cached Bitmap file exists in {@link org.cyanogenmod.launcher.home.api.provider
-     * .CmHomeContentProvider.IMAGE_FILE_CACHE_DIR} with the given filename.
-     * @param filename The filename to check for
-     * @param context The context with access to the directory that would contain this file.
-     * @return True if the file exists.
-     */
-    private static boolean bitmapCacheFileExists(String filename, Context context) {
-        // Create a file in the cache subdirectory
-        File imageDir = new File(context.getFilesDir(), IMAGE_FILE_CACHE_DIR);
-        File imageFile = new File(imageDir, filename);
-
-        return imageFile.exists();
-    }
-
     /**
      * Stores the given bitmap in internal storage in {@link #IMAGE_FILE_CACHE_DIR} using an MD5
      * sum of the bitmap content as the filename, if the cache does not exist already.
+     *
+     * The bitmap is encoded straight into a temporary file while it is hashed, so that no copy
+     * of the encoded image is kept in memory. Once complete, the temporary file is renamed to
+     * its hash, or deleted if a file with that hash is already cached.
      * @param bitmap The <a href="http://developer.android.com/reference/android/graphics/Bitmap.html">Bitmap</a>
      *               to store in the cache.
      * @param context A <a href="http://developer.android.com/reference/android/content/Context.html">Context</a>
@@ -446,61 +1088,116 @@ public class CmHomeContentProvider extends ContentProvider {
      *         if one is found.
      */
     public static Uri storeBitmapInCache(Bitmap bitmap, Context context) {
-        FileOutputStream outputStream = null;
-        ByteArrayOutputStream byteArrayOutputStream = null;
+        MessageDigest md;
         try {
-            // Get the bytes containing the image data
-            byteArrayOutputStream = new ByteArrayOutputStream();
-            bitmap.compress(Bitmap.CompressFormat.PNG, 100, byteArrayOutputStream);
-            byte[] bitmapBytes = byteArrayOutputStream.toByteArray();
-
-            String hash = hashBytesMD5(bitmapBytes);
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
             // Can't continue without a hash
-            if (hash == null) return null;
+            Log.w(TAG, "Unable to compute MD5 hash of bitmap.");
+            return null;
+        }
 
-            String filename = hash + ".png";
+        File imageDir = new File(context.getFilesDir(), IMAGE_FILE_CACHE_DIR);
+        imageDir.mkdirs();
 
-            // If the cache already exists, just return the URI to the cache file
-            if (bitmapCacheFileExists(filename, context)) {
-                return Uri.withAppendedPath(CmHomeContract.ImageFile.CONTENT_URI,
-                                            filename);
+        // A unique temporary file, in case the same bitmap is stored on several threads at once.
+        // Recently modified files are never removed by the cache cleanup.
+        File tempFile = null;
+        OutputStream outputStream = null;
+        try {
+            tempFile = File.createTempFile("bitmap", ".tmp", imageDir);
+            outputStream = new DigestOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)), md);
+            if (!bitmap.compress(Bitmap.CompressFormat.PNG, 100, outputStream)) {
+                Log.e(TAG, "Unable to save bitmap to temporary file, compression failed.");
+                return null;
             }
+            outputStream.close();
+            outputStream = null;
 
-            // Write the bytes to a file using the hash as the filename
-            // Create a file in the cache subdirectory
-            File imageDir = new File(context.getFilesDir(), IMAGE_FILE_CACHE_DIR);
-            imageDir.mkdirs();
+            String hash = new BigInteger(1, md.digest()).toString(16);
+            String filename = hash + ".png";
             File imageFile = new File(imageDir, filename);
-            outputStream = new FileOutputStream(imageFile);
-            outputStream.write(bitmapBytes);
 
-            Uri imageUri = Uri.withAppendedPath(CmHomeContract.ImageFile.CONTENT_URI,
-                                                filename);
+            if (imageFile.exists()) {
+                // Touch the file so that a pending sweep does not remove it before the row
+                // referencing it is written.
+                imageFile.setLastModified(System.currentTimeMillis());
+            } else if (tempFile.renameTo(imageFile)) {
+                tempFile = null;
+            } else if (!imageFile.exists()) {
+                Log.e(TAG, "Unable to save bitmap to temporary file. Could not rename file.");
+                return null;
+            }
 
-            // Set the image URI, which will actually be stored in the database.
-            return imageUri;
+            // The image URI, which will actually be stored in the database.
+            return Uri.withAppendedPath(CmHomeContract.ImageFile.CONTENT_URI, filename);
         } catch (FileNotFoundException e) {
             Log.e(TAG, "Unable to save bitmap to temporary file. Could not open file.");
         } catch (IOException e) {
             Log.e(TAG, "Unable to save bitmap to temporary file, IOException occurred.");
         } finally {
+            if (outputStream != null) {
                 try {
-                    if (outputStream != null) {
-                        outputStream.close();
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "Unable to save bitmap to temporary file, IOException occurred.");
-                }
-                try {
-                    if (byteArrayOutputStream != null) {
-                        byteArrayOutputStream.close();
-                    }
+                    outputStream.close();
                 } catch (IOException e) {
                     Log.e(TAG, "Unable to save bitmap to temporary file, IOException occurred.");
                 }
+            }
+            // Left over when the image was already cached, or storing it failed
+            if (tempFile != null) {
+                tempFile.delete();
+            }
         }
         // Failure, no URI available
         return null;
     }
 
+    /**
+     * The changes made to a single table that have not been notified yet.
+     */
+    private static class PendingChanges {
+        private final Uri mListUri;
+        private final Set<Long> mChangedIds = new LinkedHashSet<Long>();
+        private final Set<Long> mDeletedIds = new LinkedHashSet<Long>();
+        private Uri mFirstUri;
+        private int mChangeCount;
+        private boolean mAllIdsKnown = true;
+
+        PendingChanges(Uri listUri) {
+            mListUri = listUri;
+        }
+
+        void add(Uri uri, long id, boolean deleted) {
+            if (mChangeCount == 0) {
+                mFirstUri = uri;
+            }
+            mChangeCount++;
+
+            if (id < 0) {
+                mAllIdsKnown = false;
+            } else if (deleted) {
+                mChangedIds.remove(id);
+                mDeletedIds.add(id);
+            } else {
+                // A row inserted again after a delete must be re-read
+                mDeletedIds.remove(id);
+                mChangedIds.add(id);
+            }
+        }
+
+        /**
+         * @return The Uri to notify. A single change is notified with its original Uri, so
+         *         that older versions of CM Home can handle it.
+         */
+        Uri getNotificationUri() {
+            if (mChangeCount == 1) {
+                return mFirstUri;
+            }
+            if (!mAllIdsKnown || mChangedIds.size() + mDeletedIds.size() > MAX_NOTIFICATION_IDS) {
+                return mListUri;
+            }
+            return CmHomeContract.ChangeNotification.buildUri(mListUri, mChangedIds, mDeletedIds);
+        }
+    }
 }
@@ -3,6 +3,10 @@ package org.cyanogenmod.launcher.home.api.provider;
 import android.content.ContentResolver;
 import android.net.Uri;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
+
+import java.util.Collection;
+import java.util.List;
 
 /**
  * <p>The database contracts for all tables in the CM Home extension Database.</p>
@@ -22,6 +26,19 @@ public class CmHomeContract {
     public static Uri CONTENT_URI =
             Uri.parse("content://" + AUTHORITY);
 
+    /**
+     * The {@link android.content.ContentResolver#call(Uri, String, String, android.os.Bundle)}
+     * method that inserts or updates a single row in one step. The arg is the Uri to write to:
+     * an item Uri updates that row, or inserts a new row if it no longer exists, while a list
+     * Uri always inserts. The extras hold the values to write under {@link #EXTRA_VALUES}.
+     * The returned Bundle holds the id of the written row under {@link #EXTRA_ROW_ID}, and
+     * whether a new row was inserted under {@link #EXTRA_INSERTED}.
+     */
+    public static final String METHOD_UPSERT  = "upsert";
+    public static final String EXTRA_VALUES   = "values";
+    public static final String EXTRA_ROW_ID   = "row_id";
+    public static final String EXTRA_INSERTED = "inserted";
+
     /**
      * The database contract for persisting
      * {@link org.cyanogenmod.launcher.home.api.cards.CardData} objects.
@@ -74,7 +91,7 @@ public class CmHomeContract {
                  PRIORITY_COL};
 
         public static final String SORT_ORDER_DEFAULT =
-                PRIORITY_COL + " ASC";
+                PRIORITY_COL + " ASC, " + DATE_CREATED_COL + " ASC";
 
         @Override
         public Uri getContentUri() {
@@ -146,6 +163,179 @@ public class CmHomeContract {
         public static final String CONTENT_TYPE =
                 ContentResolver.CURSOR_DIR_BASE_TYPE +
                 "/org.cyanogenmod.home.api.imagefile";
+
+        /**
+         * Retrieves the filename of the cached image that the given Uri String points to.
+         * @param uriString A Uri String as stored in an image column.
+         * @return The filename within the image cache directory, or null if the Uri does not
+         *         point to a cached image.
+         */
+        public static String getCachedFilename(String uriString) {
+            if (TextUtils.isEmpty(uriString)) return null;
+
+            List<String> segments = Uri.parse(uriString).getPathSegments();
+            if (segments.size() == 2 && PATH.equals(segments.get(0))) {
+                return segments.get(1);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The database contract for the change log. Every insert, update and delete of a CardData
+     * or CardDataImage row records an entry with a monotonically increasing sequence number in
+     * {@link #_ID}. Only the latest change to each row is kept.
+     *
+     * <p>Query {@link #CONTENT_URI} with the {@link #SINCE_QUERY_PARAMETER} parameter set to
+     * the last sequence number seen to retrieve only the rows that changed after it. If the
+     * result contains an entry with {@link #OPERATION_RESET}, changes after the given sequence
+     * number are no longer available and all data must be reloaded.</p>
+     *
+     * <p>A single entry of {@link #ITEM_TYPE_DATABASE} is added when the database is created.
+     * Its {@link #ROW_ID_COL} holds a random id of the database, so that a sequence number can
+     * be told apart from one of an earlier database that was deleted and created again. Query it
+     * with {@link #DATABASE_ID_SELECTION}.</p>
+     *
+     * <p><b>This class is intended to be internal, and does not need to be referenced by
+     * applications using the SDK.</b></p>
+     */
+    public static final class ChangeLogContract implements BaseColumns {
+        public static final String ITEM_TYPE_COL = "item_type";
+        public static final String ROW_ID_COL    = "row_id";
+        public static final String OPERATION_COL = "operation";
+
+        public static final String ITEM_TYPE_CARD_DATA       = "carddata";
+        public static final String ITEM_TYPE_CARD_DATA_IMAGE = "carddataimage";
+        public static final String ITEM_TYPE_RESET           = "reset";
+        public static final String ITEM_TYPE_DATABASE        = "database";
+
+        public static final int OPERATION_INSERT_OR_UPDATE = 1;
+        public static final int OPERATION_DELETE           = 2;
+        public static final int OPERATION_RESET            = 3;
+        public static final int OPERATION_CREATE_DATABASE  = 4;
+
+        public static final String SINCE_QUERY_PARAMETER = "since";
+        public static final String LIMIT_QUERY_PARAMETER = "limit";
+
+        public static Uri CONTENT_URI =
+                Uri.withAppendedPath(CmHomeContract.CONTENT_URI, "changes");
+
+        public static String PATH = "changes";
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE +
+                "/org.cyanogenmod.home.api.changes";
+
+        public static final String[] PROJECTION_ALL =
+                {_ID, ITEM_TYPE_COL, ROW_ID_COL, OPERATION_COL};
+
+        public static final String SORT_ORDER_DEFAULT =
+                _ID + " ASC";
+
+        public static final String SORT_ORDER_LATEST_FIRST =
+                _ID + " DESC";
+
+        public static final String DATABASE_ID_SELECTION =
+                ITEM_TYPE_COL + " = '" + ITEM_TYPE_DATABASE + "'";
+
+        /**
+         * Builds the Uri to query for the most recent change only. Query it with
+         * {@link #SORT_ORDER_LATEST_FIRST} to retrieve the current sequence number.
+         * @param contentUri The change log content Uri of the provider to query.
+         */
+        public static Uri getLatestChangeUri(Uri contentUri) {
+            return contentUri.buildUpon()
+                             .appendQueryParameter(LIMIT_QUERY_PARAMETER, "1")
+                             .build();
+        }
+
+        /**
+         * Builds the Uri to query for all changes after the given sequence number.
+         * @param contentUri The change log content Uri of the provider to query.
+         * @param since The last sequence number seen, or 0 for all changes.
+         */
+        public static Uri getChangesSinceUri(Uri contentUri, long since) {
+            return contentUri.buildUpon()
+                             .appendQueryParameter(SINCE_QUERY_PARAMETER, Long.toString(since))
+                             .build();
+        }
+    }
+
+    /**
+     * The query parameters of coalesced change notifications. When several rows of a table
+     * change within a batch or a short time window, a single notification is sent for the list
+     * Uri of the table, listing the ids of the rows that were inserted or updated and the ids of
+     * the rows that were deleted. A list Uri notification without these parameters means the
+     * changed rows are not known.
+     *
+     * <p><b>This class is intended to be internal, and does not need to be referenced by
+     * applications using the SDK.</b></p>
+     */
+    public static final class ChangeNotification {
+        public static final String CHANGED_IDS_QUERY_PARAMETER = "changed";
+        public static final String DELETED_IDS_QUERY_PARAMETER = "deleted";
+
+        private static final String ID_SEPARATOR = ",";
+
+        /**
+         * Builds the notification Uri for the given changed and deleted row ids.
+         * @param listUri The list Uri of the table that changed.
+         * @param changedIds The ids of the rows that were inserted or updated.
+         * @param deletedIds The ids of the rows that were deleted.
+         */
+        public static Uri buildUri(Uri listUri, Collection<Long> changedIds,
+                                   Collection<Long> deletedIds) {
+            Uri.Builder builder = listUri.buildUpon();
+            if (!changedIds.isEmpty()) {
+                builder.appendQueryParameter(CHANGED_IDS_QUERY_PARAMETER,
+                                             TextUtils.join(ID_SEPARATOR, changedIds));
+            }
+            if (!deletedIds.isEmpty()) {
+                builder.appendQueryParameter(DELETED_IDS_QUERY_PARAMETER,
+                                             TextUtils.join(ID_SEPARATOR, deletedIds));
+            }
+            return builder.build();
+        }
+
+        /**
+         * @return True if the given notification Uri lists the rows that changed.
+         */
+        public static boolean hasIds(Uri uri) {
+            return uri.getQueryParameter(CHANGED_IDS_QUERY_PARAMETER) != null
+                   || uri.getQueryParameter(DELETED_IDS_QUERY_PARAMETER) != null;
+        }
+
+        /**
+         * Retrieves the row ids listed in a notification Uri.
+         * @param uri The notification Uri.
+         * @param parameter Either {@link #CHANGED_IDS_QUERY_PARAMETER} or
+         *                  {@link #DELETED_IDS_QUERY_PARAMETER}.
+         * @return The listed ids, or an empty array if there are none.
+         * @throws NumberFormatException If the Uri contains an invalid id.
+         */
+        public static long[] getIds(Uri uri, String parameter) {
+            String ids = uri.getQueryParameter(parameter);
+            if (TextUtils.isEmpty(ids)) return new long[0];
+
+            String[] idStrings = TextUtils.split(ids, ID_SEPARATOR);
+            long[] result = new long[idStrings.length];
+            for (int i = 0; i < idStrings.length; i++) {
+                result[i] = Long.parseLong(idStrings[i]);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The database contract for tracking how many rows reference each image in the image cache.
+     * Cached images that are no longer referenced by any row are deleted.
+     *
+     * <p><b>This class is intended to be internal, and does not need to be referenced by
+     * applications using the SDK.</b></p>
+     */
+    public static final class ImageReferenceContract {
+        public static final String FILE_NAME_COL = "file_name";
+        public static final String REF_COUNT_COL = "ref_count";
     }
 
     /**
@@ -161,6 +351,8 @@ public class CmHomeContract {
         CardDataImageContract.CONTENT_URI =
                 Uri.withAppendedPath(CmHomeContract.CONTENT_URI, "carddataimage");
         ImageFile.CONTENT_URI = Uri.withAppendedPath(CmHomeContract.CONTENT_URI, "imagefile");
+        ChangeLogContract.CONTENT_URI =
+                Uri.withAppendedPath(CmHomeContract.CONTENT_URI, "changes");
     }
 
     /**
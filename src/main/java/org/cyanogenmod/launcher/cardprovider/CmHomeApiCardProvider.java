@@ -14,7 +14,9 @@ import org.cyanogenmod.launcher.home.api.cards.CardData.CardDeletedInfo;
 import org.cyanogenmod.launcher.home.api.receiver.CmHomeCardChangeReceiver;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class CmHomeApiCardProvider implements ICardProvider,
         CMHomeApiManager.ICMHomeApiUpdateListener {
@@ -206,6 +208,20 @@ public class CmHomeApiCardProvider implements ICardProvider,
         }
     }
 
+    @Override
+    public Set<String> onCardsChanged(List<String> insertedIds, List<String> updatedIds,
+                                      List<String> deletedIds, boolean wasPending) {
+        Set<String> shownIds = new HashSet<String>();
+        for (CardProviderUpdateListener listener : mUpdateListeners) {
+            Set<String> handledIds = listener.onCardsChanged(insertedIds, updatedIds, deletedIds,
+                                                             wasPending);
+            if (handledIds != null) {
+                shownIds.addAll(handledIds);
+            }
+        }
+        return shownIds;
+    }
+
     public static void sendCardDeletedBroadcast(Context context, CardData deletedCardData) {
         Intent broadcast = new Intent();
         broadcast.setAction(CM_HOME_API_CARD_DELETED_BROADCAST_ACTION);
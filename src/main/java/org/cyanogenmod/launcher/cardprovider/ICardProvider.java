@@ -3,6 +3,7 @@ package org.cyanogenmod.launcher.cardprovider;
 import android.content.Context;
 
 import java.util.List;
+import java.util.Set;
 
 import it.gmariotti.cardslib.library.internal.Card;
 import org.cyanogenmod.launcher.cards.CmCard;
@@ -50,6 +51,18 @@ public interface ICardProvider {
          */
         public boolean onCardProviderUpdate(String cardId, boolean wasPending);
         public void onCardDelete(String cardId);
+
+        /**
+         * Called instead of onCardProviderUpdate and onCardDelete when several cards changed
+         * at once, so that all changes can be applied to the UI together.
+         * @param insertedIds The IDs of the cards that were added.
+         * @param updatedIds The IDs of the cards that were updated.
+         * @param deletedIds The IDs of the cards that were deleted.
+         * @param wasPending Were any of these cards pending or are these immediate updates?
+         * @return The IDs of the added or updated cards that will be displayed in the UI.
+         */
+        public Set<String> onCardsChanged(List<String> insertedIds, List<String> updatedIds,
+                                          List<String> deletedIds, boolean wasPending);
     }
 
     public class CardProviderUpdateResult {
@@ -11,6 +11,7 @@ import android.content.pm.ProviderInfo;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.util.Log;
 import android.util.LongSparseArray;
@@ -21,11 +22,15 @@ import org.cyanogenmod.launcher.home.api.cards.CardDataImage;
 import org.cyanogenmod.launcher.home.api.provider.CmHomeContract;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class CMHomeApiManager {
     private final static String TAG = "CMHomeApiManager";
@@ -40,32 +45,72 @@ public class CMHomeApiManager {
     private static final int    CARD_DATA_IMAGE_LIST        = 4;
     private static final int    CARD_DATA_IMAGE_ITEM        = 5;
     private static final int    CARD_DATA_IMAGE_DELETE_ITEM = 6;
+    // The most providers queried at the same time while loading all cards at startup.
+    private static final int    MAX_CONCURRENT_PROVIDER_LOADS = 4;
+    // How long a provider may take to return its cards at startup before the load is cancelled.
+    private static final long   PROVIDER_LOAD_TIMEOUT_MS      = 5000;
+    // How long to wait before loading the cards of a provider again after its load timed out.
+    private static final long   PROVIDER_LOAD_RETRY_DELAY_MS  = 10000;
+    // How long to wait after a change before saving the card snapshot, so that a burst of
+    // changes is saved only once.
+    private static final long   SNAPSHOT_SAVE_DELAY_MS        = 2000;
+
+    // All cards of all providers, readable from any thread.
+    private final CardStore mCardStore = new CardStore();
+    // Global IDs of cards that are shown in the UI. Written from both the UI and the
+    // background thread.
+    private final Set<String> mCardInsertsHandled =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // All other state is only accessed from the background thread.
 
     // All provider authorities that contain Cards.
     private List<String> mProviders = new ArrayList<String>();
     // Provider authority string -> SparseArray from card ID -> CardData
-    private HashMap<String, LongSparseArray<CardData>> mCards = new HashMap<String,
-            LongSparseArray<CardData>>();
-    // Provider authority string -> SparseArray from card ID -> CardData
     // Stores cards that must be updated when it is time to display them
     private HashMap<String, LongSparseArray<CardData>> mCardUpdates = new HashMap<String,
                                                                     LongSparseArray<CardData>>();
     private HashMap<String, CardData> mImageIdsToCards = new HashMap<String, CardData>();
-    private ArrayList<CardDataImage> mPendingImageUpdates = new ArrayList<CardDataImage>();
-    private HashSet<String> mPendingImageRemovalIds = new HashSet<String>();
-    private HashSet<String> mCardInsertsHandled = new HashSet<String>();
+    // Image global ID -> the latest version of the image, or null if the image was deleted.
+    // Stores image changes that must be applied when it is time to display them.
+    private LinkedHashMap<String, CardDataImage> mPendingImageChanges =
+            new LinkedHashMap<String, CardDataImage>();
+    // Provider authority string -> sequence number of the last change log entry applied.
+    // Providers built with an SDK that has no change log are not present.
+    private HashMap<String, Long> mChangeTokens = new HashMap<String, Long>();
+    // Provider authority string -> id of the provider database that its change token belongs to.
+    private HashMap<String, Long> mDatabaseIds = new HashMap<String, Long>();
+    // Provider authority string -> change token of the cards in mCardStore, for providers with
+    // changes held back in mCardUpdates or mPendingImageChanges. The snapshot saves it instead
+    // of the token in mChangeTokens, which includes the changes that were held back.
+    private HashMap<String, Long> mHeldBackChangeTokens = new HashMap<String, Long>();
+    // Provider authority string -> UriMatcher for change notifications from that provider
+    private HashMap<String, UriMatcher> mUriMatchers = new HashMap<String, UriMatcher>();
+    // Card changes collected during the current pass, to be notified to the listener at once
+    private CardChangeBatch mChangeBatch;
+    private int             mChangeBatchDepth;
 
     private CardContentObserver           mContentObserver;
     private Handler                       mBackgroundThreadHandler;
     private ICMHomeApiUpdateListener      mApiUpdateListener;
     private ApiCardPackageChangedReceiver mPackageChangedReceiver;
+    private ExecutorService               mProviderLoadExecutor;
 
     private Context mContext;
 
     private Runnable mLoadAllExtensionsRunnable = new Runnable() {
         @Override
         public void run() {
-            loadAllExtensions();
+            beginChangeBatch();
+            try {
+                // Show the cards from the last run right away, then verify them against each
+                // provider
+                restoreSnapshot();
+                loadAllExtensions();
+                removeUnavailableRestoredProviders();
+            } finally {
+                endChangeBatch();
+            }
             trackAllExtensions();
             loadAllCards();
             // Send a refresh broadcast for all packages after beginning to track them.
@@ -73,6 +118,29 @@ public class CMHomeApiManager {
         }
     };
 
+    private Runnable mSaveSnapshotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Changes held back are not part of the saved cards, sync them again next time
+            Map<String, Long> changeTokens = new HashMap<String, Long>(mChangeTokens);
+            changeTokens.putAll(mHeldBackChangeTokens);
+            CardStoreSnapshot.write(mContext, mCardStore.getVersion().getAllCardsByProvider(),
+                                    changeTokens, mDatabaseIds);
+        }
+    };
+
+    private Runnable mProcessPendingUpdatesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            beginChangeBatch();
+            try {
+                applyPendingUpdates();
+            } finally {
+                endChangeBatch();
+            }
+        }
+    };
+
     public CMHomeApiManager(Context context, Handler backgroundThreadHandler) {
         mContext = context;
         mBackgroundThreadHandler = backgroundThreadHandler;
@@ -80,21 +148,20 @@ public class CMHomeApiManager {
     }
 
     public boolean hasCard(String apiAuthority, long cardId) {
-        LongSparseArray<CardData> cards = mCards.get(apiAuthority);
-        boolean hasCard = false;
-        if (cards != null) {
-            hasCard = cards.get(cardId) != null;
-        }
-        return hasCard;
+        return mCardStore.getVersion().getCard(apiAuthority, cardId) != null;
     }
 
     public CardData getCard(String apiAuthority, long cardId) {
-        LongSparseArray<CardData> cards = mCards.get(apiAuthority);
-        CardData card = null;
-        if (cards != null) {
-            card = cards.get(cardId);
-        }
-        return card;
+        return mCardStore.getVersion().getCard(apiAuthority, cardId);
+    }
+
+    /**
+     * Retrieves the version of the stored cards, which increases with every change to any card.
+     * Can be used to skip work when nothing has changed since the last time cards were read.
+     * @return The current version number of the stored cards.
+     */
+    public long getCardsVersion() {
+        return mCardStore.getVersion().getNumber();
     }
 
     public CardData getCardWithGlobalId(String cardId) {
@@ -134,10 +201,19 @@ public class CMHomeApiManager {
     }
 
     public void destroy() {
+        // Save any changes not yet in the snapshot
+        mBackgroundThreadHandler.removeCallbacks(mSaveSnapshotRunnable);
+        mBackgroundThreadHandler.post(mSaveSnapshotRunnable);
+
         if (mContentObserver != null) {
             mContext.getContentResolver().unregisterContentObserver(mContentObserver);
         }
 
+        if (mProviderLoadExecutor != null) {
+            mProviderLoadExecutor.shutdownNow();
+            mProviderLoadExecutor = null;
+        }
+
         // After unregistering, clear the reference to mPackageChangedReceiver
         // so that it cannot be attempted to be unregistered twice in abnormal circumstances.
         if (mPackageChangedReceiver != null) {
@@ -182,12 +258,14 @@ public class CMHomeApiManager {
                 String authority = loadExtensionIfSupported(packageInfo);
 
                 boolean alreadyExists = mProviders.contains(authority) &&
-                                        mCards.containsKey(authority);
+                                        mCardStore.getVersion().hasProvider(authority);
 
-                // If the provider is already being tracked, our work is done
+                // If the provider is already being tracked, only apply what changed
                 if (authority != null && !alreadyExists) {
                     trackExtension(authority);
                     loadCards(authority, notifyListener);
+                } else if (authority != null) {
+                    syncChanges(authority);
                 }
             }
         } catch (PackageManager.NameNotFoundException e) {
@@ -196,23 +274,71 @@ public class CMHomeApiManager {
     }
 
     private void removeAllCardsForPackage(String packageName) {
-        String providerAuthority = packageName + CmHomeApiCardProvider.CARD_AUTHORITY_APPEND_STRING;
-        LongSparseArray<CardData> cards = mCards.get(providerAuthority);
+        removeAllCardsForAuthority(packageName
+                                   + CmHomeApiCardProvider.CARD_AUTHORITY_APPEND_STRING);
+    }
+
+    private void removeAllCardsForAuthority(String providerAuthority) {
+        LongSparseArray<CardData> cards = mCardStore.getVersion().getCards(providerAuthority);
         if (cards != null) {
             // Notify listener that all cards will be deleted
             for (int i = 0; i < cards.size(); i++) {
                 CardData cardData = cards.valueAt(i);
 
-                mApiUpdateListener.onCardDelete(cardData.getGlobalId());
-                mCardInsertsHandled.remove(cardData.getGlobalId());
+                removeCardDataImagesForCardData(cardData);
+                notifyCardDelete(cardData.getGlobalId());
             }
 
             // Clear storage of all cards for this provider
             mProviders.remove(providerAuthority);
-            mCards.remove(providerAuthority);
+            mCardStore.removeCards(providerAuthority);
+        }
+        mChangeTokens.remove(providerAuthority);
+        mDatabaseIds.remove(providerAuthority);
+        mHeldBackChangeTokens.remove(providerAuthority);
+        mUriMatchers.remove(providerAuthority);
+        scheduleSnapshotSave();
+    }
+
+    /**
+     * Loads the cards saved by the last run and notifies the listener of them, so that they
+     * can be shown before any provider has been queried.
+     */
+    private void restoreSnapshot() {
+        CardStoreSnapshot snapshot = CardStoreSnapshot.read(mContext);
+        if (snapshot == null) return;
+
+        mChangeTokens.putAll(snapshot.getChangeTokens());
+        mDatabaseIds.putAll(snapshot.getDatabaseIds());
+        for (Map.Entry<String, LongSparseArray<CardData>> entry
+                : snapshot.getCards().entrySet()) {
+            LongSparseArray<CardData> cards = entry.getValue();
+            mCardStore.putCards(entry.getKey(), cards);
+            for (int i = 0; i < cards.size(); i++) {
+                CardData card = cards.valueAt(i);
+                storeCardDataImagesForCardData(card);
+                notifyCardInsertOrUpdate(card.getGlobalId(), false);
+            }
+        }
+    }
+
+    /**
+     * Removes restored cards of providers that are no longer installed or no longer
+     * support the API.
+     */
+    private void removeUnavailableRestoredProviders() {
+        for (String authority : mCardStore.getVersion().getProviders()) {
+            if (!mProviders.contains(authority)) {
+                removeAllCardsForAuthority(authority);
+            }
         }
     }
 
+    private void scheduleSnapshotSave() {
+        mBackgroundThreadHandler.removeCallbacks(mSaveSnapshotRunnable);
+        mBackgroundThreadHandler.postDelayed(mSaveSnapshotRunnable, SNAPSHOT_SAVE_DELAY_MS);
+    }
+
     private void trackExtension(String authority) {
         if (mContentObserver == null) {
             mContentObserver = new CardContentObserver(mBackgroundThreadHandler);
@@ -243,31 +369,107 @@ public class CMHomeApiManager {
     }
 
     private void loadCards(String authority, boolean notifyListener) {
+        // Retrieve the change token before the cards, so that any change made while loading
+        // will be applied again by the next sync.
+        Long databaseId = retrieveDatabaseId(authority, null);
+        Long changeToken = retrieveLatestChangeToken(authority, null);
+        List<CardData> cards = retrieveAllCardsFromProvider(authority, null);
+        storeLoadedCards(authority, changeToken, databaseId, cards, notifyListener);
+    }
+
+    /**
+     * Queries a provider for all of its cards. Does not modify any state, so that it can be
+     * called from any thread.
+     * @param authority The authority of the provider to query.
+     * @param cancellationSignal A signal to cancel the queries, or null.
+     * @return All cards of the provider, with their images.
+     */
+    private List<CardData> retrieveAllCardsFromProvider(String authority,
+                                                        CancellationSignal cancellationSignal) {
         Uri getCardsUri = Uri.parse("content://" + authority + "/" +
                                     CmHomeContract.CardDataContract
                                             .LIST_INSERT_UPDATE_URI_PATH);
         Uri getImagesUri = Uri.parse("content://" + authority + "/" +
                                      CmHomeContract.CardDataImageContract
                                              .LIST_INSERT_UPDATE_URI_PATH);
-        List<CardData> cards = CardData.getAllPublishedCardDatas(mContext,
-                                                                 getCardsUri,
-                                                                 getImagesUri);
+        return CardData.getAllPublishedCardDatas(mContext,
+                                                 getCardsUri,
+                                                 getImagesUri,
+                                                 cancellationSignal);
+    }
 
-        //For quick access, build a LongSparseArray using the id as the key
-        LongSparseArray<CardData> cardMap = mCards.get(authority);
-        if (cardMap == null) {
-            cardMap = new LongSparseArray<CardData>();
-            mCards.put(authority, cardMap);
+    /**
+     * Replaces the cards of a provider with all cards loaded from it, along with the change
+     * token and database id retrieved before loading them. Only cards that are new, changed or
+     * no longer published are notified to the listener.
+     */
+    private void storeLoadedCards(String authority, Long changeToken, Long databaseId,
+                                  List<CardData> cards, boolean notifyListener) {
+        if (changeToken != null) {
+            mChangeTokens.put(authority, changeToken);
+        } else {
+            mChangeTokens.remove(authority);
+        }
+        if (databaseId != null) {
+            mDatabaseIds.put(authority, databaseId);
+        } else {
+            mDatabaseIds.remove(authority);
         }
+        // The loaded cards are stored as they are, including any changes held back so far
+        mHeldBackChangeTokens.remove(authority);
 
+        //For quick access, build a LongSparseArray using the id as the key
+        LongSparseArray<CardData> oldCards = mCardStore.getVersion().getCards(authority);
+        LongSparseArray<CardData> cardMap = new LongSparseArray<CardData>(cards.size());
         for (CardData card : cards) {
             cardMap.put(card.getId(), card);
+        }
+        mCardStore.putCards(authority, cardMap);
+
+        // Published versions must not change, find the removed cards in a copy
+        if (oldCards != null) {
+            oldCards = oldCards.clone();
+        }
+        for (CardData card : cards) {
+            CardData oldCard = null;
+            if (oldCards != null) {
+                oldCard = oldCards.get(card.getId());
+                oldCards.remove(card.getId());
+            }
+            if (oldCard != null) {
+                removeCardDataImagesForCardData(oldCard);
+            }
             storeCardDataImagesForCardData(card);
 
-            if (notifyListener) {
+            if (notifyListener && (oldCard == null || !isSameCard(oldCard, card))) {
                 notifyCardInsertOrUpdate(card.getGlobalId(), false);
             }
         }
+
+        // Any cards left over are no longer published
+        if (oldCards != null) {
+            for (int i = 0; i < oldCards.size(); i++) {
+                CardData oldCard = oldCards.valueAt(i);
+                removeCardDataImagesForCardData(oldCard);
+                if (notifyListener) {
+                    notifyCardDelete(oldCard.getGlobalId());
+                }
+            }
+        }
+        scheduleSnapshotSave();
+    }
+
+    /**
+     * Checks whether a card loaded again from its provider is unchanged, including its images.
+     * Republishing a card unchanged sets its last modified date, so only the content is
+     * compared.
+     */
+    private static boolean isSameCard(CardData oldCard, CardData newCard) {
+        return oldCard.getContentHash() == newCard.getContentHash();
+    }
+
+    private static boolean objectsEqual(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
     }
 
     private void storeCardDataImagesForCardData(CardData cardData) {
@@ -276,9 +478,118 @@ public class CMHomeApiManager {
         }
     }
 
+    private void removeCardDataImagesForCardData(CardData cardData) {
+        for (CardDataImage image : cardData.getImages()) {
+            // Only remove mappings that still point to this instance of the card
+            if (mImageIdsToCards.get(image.getGlobalId()) == cardData) {
+                mImageIdsToCards.remove(image.getGlobalId());
+            }
+        }
+    }
+
+    /**
+     * Loads the cards of all providers, querying several providers at the same time. The cards
+     * of each provider are stored on the background thread as soon as its queries complete, so
+     * that a slow provider does not hold back the cards of all others. A provider that does not
+     * respond within {@link #PROVIDER_LOAD_TIMEOUT_MS} is cancelled, and all of its cards are
+     * loaded again after {@link #PROVIDER_LOAD_RETRY_DELAY_MS}. Republishing unchanged cards in
+     * response to the refresh broadcast does not notify CM Home, so it can't be relied on.
+     */
     private void loadAllCards() {
+        if (mProviders.isEmpty()) return;
+
+        mProviderLoadExecutor = Executors.newFixedThreadPool(
+                Math.min(mProviders.size(), MAX_CONCURRENT_PROVIDER_LOADS));
         for (String authority : mProviders) {
-            loadCards(authority, false);
+            // Restored cards of providers with a change log only need the changes since
+            boolean restored = mCardStore.getVersion().hasProvider(authority);
+            Long restoredChangeToken = restored ? mChangeTokens.get(authority) : null;
+            Long restoredDatabaseId = restored ? mDatabaseIds.get(authority) : null;
+            mProviderLoadExecutor.execute(new LoadProviderCardsRunnable(authority,
+                                                                        restoredChangeToken,
+                                                                        restoredDatabaseId));
+        }
+        // Let the submitted loads finish, then release the threads
+        mProviderLoadExecutor.shutdown();
+    }
+
+    /**
+     * Queries a single provider for all of its cards on a load thread, then stores them on the
+     * background thread. If cards of the provider were restored from the snapshot along with a
+     * change token of the provider's current database, only the changes since are applied
+     * instead.
+     */
+    private class LoadProviderCardsRunnable implements Runnable {
+        private final String             mAuthority;
+        private final Long               mRestoredChangeToken;
+        private final Long               mRestoredDatabaseId;
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+        private final Runnable           mTimeoutRunnable    = new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, "Timed out loading cards for authority: " + mAuthority);
+                mCancellationSignal.cancel();
+                mBackgroundThreadHandler.postDelayed(mRetryRunnable,
+                                                     PROVIDER_LOAD_RETRY_DELAY_MS);
+            }
+        };
+        private final Runnable           mRetryRunnable      = new Runnable() {
+            @Override
+            public void run() {
+                // Skip providers removed since
+                if (mProviders.contains(mAuthority)) {
+                    beginChangeBatch();
+                    try {
+                        loadCards(mAuthority, true);
+                    } finally {
+                        endChangeBatch();
+                    }
+                }
+            }
+        };
+
+        public LoadProviderCardsRunnable(String authority, Long restoredChangeToken,
+                                         Long restoredDatabaseId) {
+            mAuthority = authority;
+            mRestoredChangeToken = restoredChangeToken;
+            mRestoredDatabaseId = restoredDatabaseId;
+        }
+
+        @Override
+        public void run() {
+            mBackgroundThreadHandler.postDelayed(mTimeoutRunnable, PROVIDER_LOAD_TIMEOUT_MS);
+
+            final Long databaseId = retrieveDatabaseId(mAuthority, mCancellationSignal);
+            final Long changeToken = retrieveLatestChangeToken(mAuthority, mCancellationSignal);
+            // The restored token only counts for the same database, the provider's data may
+            // have been cleared and created again since
+            final boolean restoredCardsValid = mRestoredChangeToken != null && changeToken != null
+                                               && mRestoredDatabaseId != null
+                                               && mRestoredDatabaseId.equals(databaseId)
+                                               && changeToken >= mRestoredChangeToken;
+            final List<CardData> cards = restoredCardsValid ? null
+                    : retrieveAllCardsFromProvider(mAuthority, mCancellationSignal);
+
+            mBackgroundThreadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mBackgroundThreadHandler.removeCallbacks(mTimeoutRunnable);
+                    // Skip cancelled loads and providers removed while loading
+                    if (!mCancellationSignal.isCanceled() && mProviders.contains(mAuthority)) {
+                        beginChangeBatch();
+                        try {
+                            if (!restoredCardsValid) {
+                                storeLoadedCards(mAuthority, changeToken, databaseId, cards,
+                                                 true);
+                            }
+                            // Apply anything that changed since the snapshot or while loading
+                            syncChanges(mAuthority);
+                        } finally {
+                            endChangeBatch();
+                        }
+                    }
+                }
+            });
         }
     }
 
@@ -296,18 +607,31 @@ public class CMHomeApiManager {
         @Override
         public void onChange(boolean selfChange, Uri uri) {
             if (!selfChange) {
-                handleUriChange(uri);
+                beginChangeBatch();
+                try {
+                    handleUriChange(uri);
+                } finally {
+                    endChangeBatch();
+                }
             }
         }
     }
 
     private void handleUriChange(Uri uri) {
+        scheduleSnapshotSave();
         String authority = uri.getAuthority();
         UriMatcher matcher = getUriMatcherForAuthority(authority);
         switch (matcher.match(uri)) {
             case CARD_DATA_LIST:
-                // Todo: figure out what rows were changed?
-                // It might not be trivial to handle a list of changes
+                if (CmHomeContract.ChangeNotification.hasIds(uri)) {
+                    applyNotifiedChanges(uri,
+                            CmHomeContract.CardDataContract.LIST_INSERT_UPDATE_URI_PATH,
+                            CmHomeContract.CardDataContract.SINGLE_ROW_DELETE_URI_PATH);
+                } else if (mChangeTokens.containsKey(authority)) {
+                    syncChanges(authority);
+                } else {
+                    reconcileCards(authority);
+                }
                 break;
             case CARD_DATA_ITEM:
                 onCardInsertOrUpdate(uri);
@@ -316,8 +640,15 @@ public class CMHomeApiManager {
                 onCardDelete(uri);
                 break;
             case CARD_DATA_IMAGE_LIST:
-                // Todo: figure out what rows were changed?
-                // It might not be trivial to handle a list of changes
+                if (CmHomeContract.ChangeNotification.hasIds(uri)) {
+                    applyNotifiedChanges(uri,
+                            CmHomeContract.CardDataImageContract.LIST_INSERT_UPDATE_URI_PATH,
+                            CmHomeContract.CardDataImageContract.SINGLE_ROW_DELETE_URI_PATH);
+                } else if (mChangeTokens.containsKey(authority)) {
+                    syncChanges(authority);
+                } else {
+                    reconcileCardImages(authority);
+                }
                 break;
             case CARD_DATA_IMAGE_ITEM:
                 onCardImageInsertOrUpdate(uri);
@@ -330,6 +661,362 @@ public class CMHomeApiManager {
         }
     }
 
+    /**
+     * Applies the changes listed in a coalesced change notification, deletions first.
+     * @param uri The notification Uri, listing the changed and deleted row ids.
+     * @param listPath The list path of the table that changed.
+     * @param deletePath The single row delete path of the table that changed.
+     */
+    private void applyNotifiedChanges(Uri uri, String listPath, String deletePath) {
+        long[] changedIds;
+        long[] deletedIds;
+        try {
+            changedIds = CmHomeContract.ChangeNotification.getIds(uri,
+                    CmHomeContract.ChangeNotification.CHANGED_IDS_QUERY_PARAMETER);
+            deletedIds = CmHomeContract.ChangeNotification.getIds(uri,
+                    CmHomeContract.ChangeNotification.DELETED_IDS_QUERY_PARAMETER);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid change notification, syncing all changes instead: " + uri);
+            syncChanges(uri.getAuthority());
+            return;
+        }
+
+        Uri baseUri = Uri.parse("content://" + uri.getAuthority());
+        for (long id : deletedIds) {
+            handleUriChange(getChangedItemUri(baseUri, listPath, deletePath, id,
+                                              CmHomeContract.ChangeLogContract.OPERATION_DELETE));
+        }
+        for (long id : changedIds) {
+            handleUriChange(getChangedItemUri(baseUri, listPath, deletePath, id,
+                    CmHomeContract.ChangeLogContract.OPERATION_INSERT_OR_UPDATE));
+        }
+    }
+
+    private Uri getChangeLogUri(String authority) {
+        return Uri.parse("content://" + authority + "/" + CmHomeContract.ChangeLogContract.PATH);
+    }
+
+    /**
+     * Retrieves the sequence number of the most recent change recorded by the provider.
+     * @param authority The authority of the provider to query.
+     * @param cancellationSignal A signal to cancel the query, or null.
+     * @return The latest change token, 0 if no changes have been recorded, or null if the
+     *         provider does not support the change log.
+     */
+    private Long retrieveLatestChangeToken(String authority,
+                                           CancellationSignal cancellationSignal) {
+        Uri uri = CmHomeContract.ChangeLogContract.getLatestChangeUri(getChangeLogUri(authority));
+        Cursor cursor = null;
+        try {
+            ContentResolver contentResolver = mContext.getContentResolver();
+            cursor = contentResolver.query(uri,
+                                           new String[]{CmHomeContract.ChangeLogContract._ID},
+                                           null,
+                                           null,
+                                           CmHomeContract.ChangeLogContract
+                                                   .SORT_ORDER_LATEST_FIRST,
+                                           cancellationSignal);
+        // Catching all Exceptions, since we can't be sure what the extension will do.
+        // Extensions built with an older SDK will throw for the unknown Uri.
+        } catch (Exception e) {
+            Log.i(TAG, "Change log not supported for authority: " + authority);
+            return null;
+        }
+
+        if (cursor == null) {
+            return null;
+        }
+
+        long token = 0;
+        if (cursor.moveToFirst()) {
+            token = cursor.getLong(0);
+        }
+        cursor.close();
+        return token;
+    }
+
+    /**
+     * Retrieves the random id that the provider recorded in its change log when it created its
+     * database. A change token is only meaningful along with the id of its database.
+     * @param authority The authority of the provider to query.
+     * @param cancellationSignal A signal to cancel the query, or null.
+     * @return The database id, or null if the provider does not record one.
+     */
+    private Long retrieveDatabaseId(String authority, CancellationSignal cancellationSignal) {
+        Cursor cursor = null;
+        try {
+            ContentResolver contentResolver = mContext.getContentResolver();
+            cursor = contentResolver.query(getChangeLogUri(authority),
+                                           new String[]{CmHomeContract.ChangeLogContract
+                                                                .ROW_ID_COL},
+                                           CmHomeContract.ChangeLogContract.DATABASE_ID_SELECTION,
+                                           null,
+                                           null,
+                                           cancellationSignal);
+        // Catching all Exceptions, since we can't be sure what the extension will do.
+        } catch (Exception e) {
+            Log.i(TAG, "Database id not supported for authority: " + authority);
+            return null;
+        }
+
+        if (cursor == null) {
+            return null;
+        }
+
+        Long databaseId = null;
+        if (cursor.moveToFirst()) {
+            databaseId = cursor.getLong(0);
+        }
+        cursor.close();
+        return databaseId;
+    }
+
+    /**
+     * Applies all changes recorded by the provider since the last sync. Does nothing if the
+     * provider does not support the change log.
+     * @param authority The authority of the provider to sync.
+     */
+    private void syncChanges(String authority) {
+        Long since = mChangeTokens.get(authority);
+        if (since == null) {
+            return;
+        }
+
+        Uri uri = CmHomeContract.ChangeLogContract.getChangesSinceUri(getChangeLogUri(authority),
+                                                                      since);
+        Cursor cursor = null;
+        try {
+            ContentResolver contentResolver = mContext.getContentResolver();
+            cursor = contentResolver.query(uri,
+                                           CmHomeContract.ChangeLogContract.PROJECTION_ALL,
+                                           null,
+                                           null,
+                                           CmHomeContract.ChangeLogContract.SORT_ORDER_DEFAULT);
+        // Catching all Exceptions, since we can't be sure what the extension will do.
+        } catch (Exception e) {
+            Log.e(TAG, "Error querying for changes, ContentProvider threw an exception for uri:" +
+                       " " + uri, e);
+        }
+
+        if (cursor == null) {
+            return;
+        }
+
+        long token = since;
+        boolean reset = false;
+        List<Uri> cardChanges = new ArrayList<Uri>();
+        List<Uri> imageChanges = new ArrayList<Uri>();
+        Uri baseUri = Uri.parse("content://" + authority);
+        while (cursor.moveToNext()) {
+            token = Math.max(token, cursor.getLong(0));
+            String itemType = cursor.getString(1);
+            long rowId = cursor.getLong(2);
+            int operation = cursor.getInt(3);
+
+            if (operation == CmHomeContract.ChangeLogContract.OPERATION_RESET) {
+                reset = true;
+            } else if (CmHomeContract.ChangeLogContract.ITEM_TYPE_CARD_DATA.equals(itemType)) {
+                cardChanges.add(getChangedItemUri(baseUri,
+                        CmHomeContract.CardDataContract.LIST_INSERT_UPDATE_URI_PATH,
+                        CmHomeContract.CardDataContract.SINGLE_ROW_DELETE_URI_PATH,
+                        rowId, operation));
+            } else if (CmHomeContract.ChangeLogContract.ITEM_TYPE_CARD_DATA_IMAGE
+                    .equals(itemType)) {
+                imageChanges.add(getChangedItemUri(baseUri,
+                        CmHomeContract.CardDataImageContract.LIST_INSERT_UPDATE_URI_PATH,
+                        CmHomeContract.CardDataImageContract.SINGLE_ROW_DELETE_URI_PATH,
+                        rowId, operation));
+            }
+        }
+        cursor.close();
+
+        if (reset) {
+            // Changes since our token are no longer available, start over.
+            reloadCards(authority);
+            return;
+        }
+
+        // Apply card changes first, so that changed images can find their cards.
+        for (Uri changedUri : cardChanges) {
+            handleUriChange(changedUri);
+        }
+        for (Uri changedUri : imageChanges) {
+            handleUriChange(changedUri);
+        }
+
+        // Advance only once the changes have been applied or held back, so that changes held
+        // back are recorded against the token from before them
+        mChangeTokens.put(authority, token);
+    }
+
+    /**
+     * Brings the cards of a provider that does not support the change log up to date. Only the
+     * id and last modified date of each card are queried, then only the cards that were added
+     * or changed are queried in full.
+     * @param authority The authority of the provider to reconcile.
+     */
+    private void reconcileCards(String authority) {
+        LongSparseArray<CardData> cards = mCardStore.getVersion().getCards(authority);
+        if (cards == null) {
+            // Nothing to compare against, a single query for all cards is cheaper
+            loadCards(authority, true);
+            return;
+        }
+
+        Uri cardsUri = Uri.parse("content://" + authority + "/" +
+                                 CmHomeContract.CardDataContract.LIST_INSERT_UPDATE_URI_PATH);
+        Cursor cursor = null;
+        try {
+            ContentResolver contentResolver = mContext.getContentResolver();
+            cursor = contentResolver.query(cardsUri,
+                                           new String[]{CmHomeContract.CardDataContract._ID,
+                                                        CmHomeContract.CardDataContract
+                                                                .LAST_MODIFIED_COL},
+                                           null,
+                                           null,
+                                           null);
+        // Catching all Exceptions, since we can't be sure what the extension will do.
+        } catch (Exception e) {
+            Log.e(TAG, "Error querying for CardDatas, ContentProvider threw an exception for uri:" +
+                       " " + cardsUri, e);
+        }
+
+        if (cursor == null) {
+            return;
+        }
+
+        Uri baseUri = Uri.parse("content://" + authority);
+        LongSparseArray<CardData> deletedCards = cards.clone();
+        List<Uri> changedUris = new ArrayList<Uri>();
+        while (cursor.moveToNext()) {
+            long id = cursor.getLong(0);
+            long lastModified = CardData.getDateFromCursor(cursor, 1);
+            deletedCards.remove(id);
+
+            // Compare against the newest version we have, which may still be queued
+            CardData card = getLatestCard(authority, id);
+            if (card == null || card.getLastModifiedTime() != lastModified) {
+                changedUris.add(getChangedItemUri(baseUri,
+                        CmHomeContract.CardDataContract.LIST_INSERT_UPDATE_URI_PATH,
+                        CmHomeContract.CardDataContract.SINGLE_ROW_DELETE_URI_PATH,
+                        id, CmHomeContract.ChangeLogContract.OPERATION_INSERT_OR_UPDATE));
+            }
+        }
+        cursor.close();
+
+        for (int i = 0; i < deletedCards.size(); i++) {
+            onCardDelete(getChangedItemUri(baseUri,
+                    CmHomeContract.CardDataContract.LIST_INSERT_UPDATE_URI_PATH,
+                    CmHomeContract.CardDataContract.SINGLE_ROW_DELETE_URI_PATH,
+                    deletedCards.keyAt(i), CmHomeContract.ChangeLogContract.OPERATION_DELETE));
+        }
+        for (Uri changedUri : changedUris) {
+            onCardInsertOrUpdate(changedUri);
+        }
+    }
+
+    /**
+     * Brings the card images of a provider that does not support the change log up to date.
+     * Images have no modification date, but all of their columns are small, so all images are
+     * queried and only those that were added, changed or deleted are applied.
+     * @param authority The authority of the provider to reconcile.
+     */
+    private void reconcileCardImages(String authority) {
+        LongSparseArray<CardData> cards = mCardStore.getVersion().getCards(authority);
+        if (cards == null) {
+            // Images are loaded along with their cards
+            loadCards(authority, true);
+            return;
+        }
+
+        Uri imagesUri = Uri.parse("content://" + authority + "/" +
+                                  CmHomeContract.CardDataImageContract
+                                          .LIST_INSERT_UPDATE_URI_PATH);
+        Cursor cursor = null;
+        try {
+            ContentResolver contentResolver = mContext.getContentResolver();
+            cursor = contentResolver.query(imagesUri,
+                                           CmHomeContract.CardDataImageContract.PROJECTION_ALL,
+                                           null,
+                                           null,
+                                           null);
+        // Catching all Exceptions, since we can't be sure what the extension will do.
+        } catch (Exception e) {
+            Log.e(TAG, "Error querying for CardDataImages, ContentProvider threw an exception for" +
+                       " uri: " + imagesUri, e);
+        }
+
+        // A failed query must not be mistaken for all images being deleted
+        if (cursor == null) {
+            return;
+        }
+
+        List<CardDataImage> images = new ArrayList<CardDataImage>();
+        CardDataImage.CursorRowMapper rowMapper = new CardDataImage.CursorRowMapper(cursor,
+                                                                                    authority);
+        while (cursor.moveToNext()) {
+            CardDataImage image = rowMapper.createFromCurrentRow();
+            if (image != null) {
+                images.add(image);
+            }
+        }
+        cursor.close();
+
+        // Collect the newest version we have of each image, which may still be queued
+        HashMap<String, CardDataImage> knownImages = new HashMap<String, CardDataImage>();
+        for (int i = 0; i < cards.size(); i++) {
+            for (CardDataImage image : cards.valueAt(i).getImages()) {
+                knownImages.put(image.getGlobalId(), image);
+            }
+        }
+        for (Map.Entry<String, CardDataImage> entry : mPendingImageChanges.entrySet()) {
+            CardDataImage image = entry.getValue();
+            if (image == null) {
+                knownImages.remove(entry.getKey());
+            } else if (authority.equals(image.getAuthority())) {
+                knownImages.put(entry.getKey(), image);
+            }
+        }
+
+        List<CardDataImage> changedImages = new ArrayList<CardDataImage>();
+        for (CardDataImage image : images) {
+            CardDataImage knownImage = knownImages.remove(image.getGlobalId());
+            if (knownImage == null || knownImage.getCardDataId() != image.getCardDataId()
+                || !objectsEqual(knownImage.getImageUri(), image.getImageUri())
+                || !objectsEqual(knownImage.getImageLabel(), image.getImageLabel())) {
+                changedImages.add(image);
+            }
+        }
+
+        Uri baseUri = Uri.parse("content://" + authority);
+        for (CardDataImage deletedImage : knownImages.values()) {
+            onCardImageDelete(getChangedItemUri(baseUri,
+                    CmHomeContract.CardDataImageContract.LIST_INSERT_UPDATE_URI_PATH,
+                    CmHomeContract.CardDataImageContract.SINGLE_ROW_DELETE_URI_PATH,
+                    deletedImage.getId(), CmHomeContract.ChangeLogContract.OPERATION_DELETE));
+        }
+        for (CardDataImage changedImage : changedImages) {
+            onCardImageInsertOrUpdate(changedImage);
+        }
+    }
+
+    private Uri getChangedItemUri(Uri baseUri, String listPath, String deletePath, long rowId,
+                                  int operation) {
+        String path = operation == CmHomeContract.ChangeLogContract.OPERATION_DELETE
+                      ? deletePath : listPath;
+        return Uri.withAppendedPath(baseUri, path + "/" + rowId);
+    }
+
+    /**
+     * Loads all cards of the given provider again from scratch, notifying the listener of
+     * the cards that were inserted, changed or deleted.
+     * @param authority The authority of the provider to reload.
+     */
+    private void reloadCards(String authority) {
+        mCardUpdates.remove(authority);
+        loadCards(authority, true);
+    }
+
     private CardData retrieveCardDataFromProvider(Uri uri) {
         Cursor cursor = null;
         try {
@@ -347,9 +1034,10 @@ public class CMHomeApiManager {
 
         CardData theCard = null;
         if (cursor != null) {
-            if (cursor.getCount() > 0) {
-                cursor.moveToFirst();
-                theCard = CardData.createFromCurrentCursorRow(cursor, uri.getAuthority());
+            if (cursor.moveToFirst()) {
+                CardData.CursorRowMapper rowMapper =
+                        new CardData.CursorRowMapper(cursor, uri.getAuthority());
+                theCard = rowMapper.createFromCurrentRow();
             }
             cursor.close();
         }
@@ -362,39 +1050,54 @@ public class CMHomeApiManager {
      */
     private void onCardInsertOrUpdate(Uri uri) {
         String authority = uri.getAuthority();
-        LongSparseArray<CardData> cards = mCards.get(authority);
 
         CardData theNewCard = retrieveCardDataFromProvider(uri);
         if (theNewCard != null) {
-            if (cards == null) {
-                // First card of the provider, insertion occurred
-                cards = new LongSparseArray<CardData>();
+            CardData currentCard = getLatestCard(authority, theNewCard.getId());
+            if (currentCard != null) {
+                // A single row carries no images, the card keeps the ones already known
+                for (CardDataImage image : currentCard.getImages()) {
+                    theNewCard.addCardDataImage(image);
+                }
+                if (isSameCard(currentCard, theNewCard)) {
+                    // Republished unchanged, there is nothing to show
+                    return;
+                }
+            }
+
+            // Do we have an update or insertion?
+            if (getCard(authority, theNewCard.getId()) != null &&
+                mCardInsertsHandled.contains(theNewCard.getGlobalId())) {
+                // update, queue it up
+                addCardUpdate(authority, theNewCard);
+            } else {
+                // insertion, let it fly
+                mCardStore.putCard(authority, theNewCard);
                 storeCardDataImagesForCardData(theNewCard);
-                cards.put(theNewCard.getId(), theNewCard);
-                mCards.put(authority, cards);
                 notifyCardInsertOrUpdate(theNewCard.getGlobalId(), false);
-            } else {
-                // Do we have an update or insertion?
-                if (cards.get(theNewCard.getId()) != null &&
-                    mCardInsertsHandled.contains(theNewCard.getGlobalId())) {
-                    // update, queue it up
-                    addCardUpdate(authority, theNewCard);
-                } else {
-                    // insertion, let it fly
-                    cards.put(theNewCard.getId(), theNewCard);
-                    storeCardDataImagesForCardData(theNewCard);
-                    notifyCardInsertOrUpdate(theNewCard.getGlobalId(), false);
-                }
             }
         }
     }
 
+    /**
+     * Retrieves the newest version of a card, which may be an update that is still queued.
+     * @param authority The authority that the card belongs to.
+     * @param id The id of the card.
+     * @return The newest version of the card, or null if there is none.
+     */
+    private CardData getLatestCard(String authority, long id) {
+        LongSparseArray<CardData> pendingUpdates = mCardUpdates.get(authority);
+        CardData card = pendingUpdates != null ? pendingUpdates.get(id) : null;
+        return card != null ? card : getCard(authority, id);
+    }
+
     /**
      * Adds a card to the updates that have been queued, so that they can be applied later.
      * @param authority The authority that the card belongs to.
      * @param cardData The cardData that will be updated.
      */
     private void addCardUpdate(String authority, CardData cardData) {
+        onChangeHeldBack(authority);
         LongSparseArray<CardData> cards = mCardUpdates.get(authority);
         if (cards == null) {
             cards = new LongSparseArray<CardData>();
@@ -403,6 +1106,18 @@ public class CMHomeApiManager {
         cards.put(cardData.getId(), cardData);
     }
 
+    /**
+     * Records the change token of the cards in mCardStore when the first change of a provider
+     * is held back, so that a snapshot saved before the change is applied does not skip it.
+     * @param authority The authority of the provider whose change is held back.
+     */
+    private void onChangeHeldBack(String authority) {
+        Long changeToken = mChangeTokens.get(authority);
+        if (changeToken != null && !mHeldBackChangeTokens.containsKey(authority)) {
+            mHeldBackChangeTokens.put(authority, changeToken);
+        }
+    }
+
     /**
      * Remove a card update, if one exists for that cardData.
      * @param authority The authority that the card belongs to.
@@ -418,21 +1133,16 @@ public class CMHomeApiManager {
     private void onCardDelete(Uri uri) {
         String authority = uri.getAuthority();
         long id = Long.parseLong(uri.getLastPathSegment());
-        LongSparseArray<CardData> cards = mCards.get(authority);
-        if (cards != null) {
-            CardData cardData = cards.get(id);
-
-            if (cardData != null) {
-                for (CardDataImage image : cardData.getImages()) {
-                    mImageIdsToCards.remove(image.getGlobalId());
-                }
+        CardData cardData = getCard(authority, id);
+        if (cardData != null) {
+            for (CardDataImage image : cardData.getImages()) {
+                mImageIdsToCards.remove(image.getGlobalId());
+            }
 
-                String globalId = cardData.getGlobalId();
-                cards.delete(id);
+            String globalId = cardData.getGlobalId();
+            mCardStore.removeCard(authority, id);
 
-                mApiUpdateListener.onCardDelete(globalId);
-                mCardInsertsHandled.remove(globalId);
-            }
+            notifyCardDelete(globalId);
         }
         removeCardUpdate(authority, id);
     }
@@ -454,10 +1164,11 @@ public class CMHomeApiManager {
 
         CardDataImage theImage = null;
         if (cursor != null) {
-            if (cursor.getCount() > 0) {
-                // This will be called only for a single image insertion or update
-                cursor.moveToFirst();
-                theImage = CardDataImage.createFromCurrentCursorRow(cursor, uri.getAuthority());
+            // This will be called only for a single image insertion or update
+            if (cursor.moveToFirst()) {
+                CardDataImage.CursorRowMapper rowMapper =
+                        new CardDataImage.CursorRowMapper(cursor, uri.getAuthority());
+                theImage = rowMapper.createFromCurrentRow();
             }
             cursor.close();
         }
@@ -466,12 +1177,18 @@ public class CMHomeApiManager {
 
     private void onCardImageInsertOrUpdate(Uri uri) {
         // Get CardDataImage from URI id
-        CardDataImage newImage = retrieveCardDataImageFromProvider(uri);
+        onCardImageInsertOrUpdate(retrieveCardDataImageFromProvider(uri));
+    }
+
+    private void onCardImageInsertOrUpdate(CardDataImage newImage) {
         if (newImage != null) {
             CardData associatedCard = getCard(newImage.getAuthority(), newImage.getCardDataId());
+            if (associatedCard == null) {
+                return;
+            }
             if (mCardInsertsHandled.contains(associatedCard.getGlobalId())) {
-                mPendingImageUpdates.add(newImage);
-                mPendingImageRemovalIds.remove(newImage.getGlobalId());
+                onChangeHeldBack(newImage.getAuthority());
+                mPendingImageChanges.put(newImage.getGlobalId(), newImage);
             } else {
                 cardImageInsertOrUpdate(newImage, false);
             }
@@ -483,9 +1200,11 @@ public class CMHomeApiManager {
         if (newImage != null) {
             CardData associatedCard = getCard(newImage.getAuthority(), newImage.getCardDataId());
             if (associatedCard != null) {
-                associatedCard.addOrUpdateCardDataImage(newImage);
-                mImageIdsToCards.put(newImage.getGlobalId(), associatedCard);
-                notifyCardInsertOrUpdate(associatedCard.getGlobalId(), wasPending);
+                // Stored cards may be in use by readers, change a copy instead
+                CardData updatedCard = associatedCard.copy();
+                updatedCard.addOrUpdateCardDataImage(newImage);
+                replaceCard(associatedCard, updatedCard);
+                notifyCardInsertOrUpdate(updatedCard.getGlobalId(), wasPending);
             }
         }
     }
@@ -497,17 +1216,9 @@ public class CMHomeApiManager {
                 String authority = uri.getAuthority();
                 String cardDataImageGlobalId = authority + "/" + id;
 
-                // Remove any pending updates to this image
-                Iterator<CardDataImage> cardDataImageIterator = mPendingImageUpdates.iterator();
-                while (cardDataImageIterator.hasNext()) {
-                    if (cardDataImageGlobalId
-                            .equals(cardDataImageIterator.next().getGlobalId())) {
-                        cardDataImageIterator.remove();
-                    }
-                }
-
-                // Store the image for pending deletion
-                mPendingImageRemovalIds.add(cardDataImageGlobalId);
+                // Store the image for pending deletion, replacing any pending update
+                onChangeHeldBack(authority);
+                mPendingImageChanges.put(cardDataImageGlobalId, null);
             } catch (NumberFormatException e) {
                 Log.e(TAG, "Unable to handle CardDataImage deletion for Uri: " + uri.toString());
             }
@@ -519,50 +1230,75 @@ public class CMHomeApiManager {
         // remove the image and notify about the update.
         CardData associatedCard = mImageIdsToCards.get(cardDataImageGlobalId);
         if (associatedCard != null) {
-            associatedCard.removeCardDataImage(cardDataImageGlobalId);
+            // Stored cards may be in use by readers, change a copy instead
+            CardData updatedCard = associatedCard.copy();
+            updatedCard.removeCardDataImage(cardDataImageGlobalId);
             mImageIdsToCards.remove(cardDataImageGlobalId);
-            notifyCardInsertOrUpdate(associatedCard.getGlobalId(), wasPending);
+            replaceCard(associatedCard, updatedCard);
+            notifyCardInsertOrUpdate(updatedCard.getGlobalId(), wasPending);
         }
     }
 
+    /**
+     * Stores a changed copy of a card in place of the card, including its image mappings.
+     */
+    private void replaceCard(CardData oldCard, CardData newCard) {
+        removeCardDataImagesForCardData(oldCard);
+        mCardStore.putCard(newCard.getAuthority(), newCard);
+        storeCardDataImagesForCardData(newCard);
+    }
+
+    /**
+     * Applies all card and image updates that were held back while their cards were shown.
+     * The updates are applied on the background thread, the only thread that changes the
+     * stored cards, so that callers never wait on an extension. Once they are applied, the
+     * listener is notified of them with wasPending set, and {@link #getCard(String, long)} and
+     * the other getters return the updated cards.
+     */
     public void processPendingUpdates() {
+        mBackgroundThreadHandler.post(mProcessPendingUpdatesRunnable);
+    }
+
+    private void applyPendingUpdates() {
         for (Map.Entry<String, LongSparseArray<CardData>> entry : mCardUpdates.entrySet()) {
             LongSparseArray<CardData> cards = entry.getValue();
             for (int i = 0; i < cards.size(); i++) {
                 updateCard(entry.getKey(), cards.valueAt(i), true);
             }
         }
+        mCardUpdates.clear();
 
-        for (CardDataImage cardDataImage : mPendingImageUpdates) {
-            cardImageInsertOrUpdate(cardDataImage, true);
-        }
-
-        for (String imageId : mPendingImageRemovalIds) {
-            removeCardDataImage(imageId, true);
+        // Apply only the latest change of each image, in the order the images first changed
+        for (Map.Entry<String, CardDataImage> entry : mPendingImageChanges.entrySet()) {
+            CardDataImage cardDataImage = entry.getValue();
+            if (cardDataImage != null) {
+                cardImageInsertOrUpdate(cardDataImage, true);
+            } else {
+                removeCardDataImage(entry.getKey(), true);
+            }
         }
-
-        mPendingImageUpdates.clear();
-        mPendingImageRemovalIds.clear();
+        mPendingImageChanges.clear();
+        mHeldBackChangeTokens.clear();
     }
 
     private void updateCard(String authority, CardData theNewCard, boolean wasPending) {
-        LongSparseArray<CardData> cards = mCards.get(authority);
         if (theNewCard != null) {
-            if (cards == null) {
-                // First card of the provider, insertion occurred
-                cards = new LongSparseArray<CardData>();
-                cards.put(theNewCard.getId(), theNewCard);
-                mCards.put(authority, cards);
-
-            } else {
-                cards.put(theNewCard.getId(), theNewCard);
-                storeCardDataImagesForCardData(theNewCard);
-            }
+            mCardStore.putCard(authority, theNewCard);
+            storeCardDataImagesForCardData(theNewCard);
             notifyCardInsertOrUpdate(theNewCard.getGlobalId(), wasPending);
         }
     }
 
     private void notifyCardInsertOrUpdate(String globalId, boolean wasPending) {
+        // Cards restored or loaded before a listener is set are picked up by getAllCardDatas
+        if (mApiUpdateListener == null) return;
+
+        if (mChangeBatch != null) {
+            mChangeBatch.addInsertOrUpdate(globalId, mCardInsertsHandled.contains(globalId),
+                                           wasPending);
+            return;
+        }
+
         boolean inserted = mApiUpdateListener.onCardInsertOrUpdate(globalId,
                                                                    wasPending);
         if (inserted) {
@@ -570,7 +1306,143 @@ public class CMHomeApiManager {
         }
     }
 
+    private void notifyCardDelete(String globalId) {
+        if (mApiUpdateListener != null) {
+            if (mChangeBatch != null) {
+                mChangeBatch.addDelete(globalId);
+                return;
+            }
+            mApiUpdateListener.onCardDelete(globalId);
+        }
+        mCardInsertsHandled.remove(globalId);
+    }
+
+    /**
+     * Starts collecting card changes, so that all changes made until the matching
+     * {@link #endChangeBatch()} are notified to the listener at once. Batches may be nested,
+     * the changes are notified when the outermost batch ends.
+     */
+    private void beginChangeBatch() {
+        if (mChangeBatchDepth++ == 0) {
+            mChangeBatch = new CardChangeBatch();
+        }
+    }
+
+    private void endChangeBatch() {
+        if (--mChangeBatchDepth > 0) {
+            return;
+        }
+
+        CardChangeBatch batch = mChangeBatch;
+        mChangeBatch = null;
+        if (mApiUpdateListener == null || batch.isEmpty()) {
+            return;
+        }
+
+        if (batch.size() == 1) {
+            // A single change is notified the same way as before batching existed
+            if (!batch.getDeletedIds().isEmpty()) {
+                notifyCardDelete(batch.getDeletedIds().get(0));
+            } else {
+                String globalId = !batch.getInsertedIds().isEmpty()
+                                  ? batch.getInsertedIds().get(0)
+                                  : batch.getUpdatedIds().get(0);
+                notifyCardInsertOrUpdate(globalId, batch.wasPending());
+            }
+            return;
+        }
+
+        Set<String> shownIds = mApiUpdateListener.onCardsChanged(batch.getInsertedIds(),
+                                                                 batch.getUpdatedIds(),
+                                                                 batch.getDeletedIds(),
+                                                                 batch.wasPending());
+        mCardInsertsHandled.removeAll(batch.getDeletedIds());
+        if (shownIds != null) {
+            mCardInsertsHandled.addAll(shownIds);
+        }
+    }
+
+    /**
+     * Card changes collected during a single pass. Only the last change of each card is kept,
+     * except that a card inserted and then updated remains an insertion.
+     */
+    private static class CardChangeBatch {
+        private static final int INSERTED = 1;
+        private static final int UPDATED  = 2;
+        private static final int DELETED  = 3;
+
+        // Global card ID -> INSERTED, UPDATED or DELETED, in the order cards first changed
+        private final LinkedHashMap<String, Integer> mChanges =
+                new LinkedHashMap<String, Integer>();
+        private boolean mWasPending;
+
+        /**
+         * @param shown Whether the card is currently shown in the UI, in which case the
+         *              change is an update.
+         */
+        public void addInsertOrUpdate(String globalId, boolean shown, boolean wasPending) {
+            Integer previous = mChanges.get(globalId);
+            boolean inserted = previous != null ? previous == INSERTED : !shown;
+            mChanges.put(globalId, inserted ? INSERTED : UPDATED);
+            mWasPending |= wasPending;
+        }
+
+        public void addDelete(String globalId) {
+            mChanges.put(globalId, DELETED);
+        }
+
+        public boolean isEmpty() {
+            return mChanges.isEmpty();
+        }
+
+        public int size() {
+            return mChanges.size();
+        }
+
+        /**
+         * @return Whether any of the changes had been held back until processPendingUpdates.
+         */
+        public boolean wasPending() {
+            return mWasPending;
+        }
+
+        public List<String> getInsertedIds() {
+            return getIds(INSERTED);
+        }
+
+        public List<String> getUpdatedIds() {
+            return getIds(UPDATED);
+        }
+
+        public List<String> getDeletedIds() {
+            return getIds(DELETED);
+        }
+
+        private List<String> getIds(int change) {
+            List<String> ids = new ArrayList<String>();
+            for (Map.Entry<String, Integer> entry : mChanges.entrySet()) {
+                if (entry.getValue() == change) {
+                    ids.add(entry.getKey());
+                }
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Retrieves the UriMatcher for change notifications from the given provider, creating it
+     * on first use. Matchers are kept until the provider's package is removed.
+     */
     private UriMatcher getUriMatcherForAuthority(String authority) {
+        UriMatcher matcher = mUriMatchers.get(authority);
+        if (matcher == null) {
+            matcher = createUriMatcherForAuthority(authority);
+            mUriMatchers.put(authority, matcher);
+        }
+        return matcher;
+    }
+
+    private UriMatcher createUriMatcherForAuthority(String authority) {
         UriMatcher matcher = new UriMatcher(UriMatcher.NO_MATCH);
         matcher.addURI(authority,
                        CmHomeContract.CardDataContract.LIST_INSERT_UPDATE_URI_PATH,
@@ -593,14 +1465,12 @@ public class CMHomeApiManager {
         return matcher;
     }
 
+    /**
+     * Retrieves all cards of all providers. Can be called from any thread.
+     * @return An unmodifiable list of all cards, as they were when this method was called.
+     */
     public List<CardData> getAllCardDatas() {
-        List<CardData> theCards = new ArrayList<CardData>();
-        for (LongSparseArray<CardData> cards : mCards.values()) {
-            for (int i = 0; i < cards.size(); i++) {
-                theCards.add(cards.valueAt(i));
-            }
-        }
-        return theCards;
+        return mCardStore.getVersion().getAllCards();
     }
 
     public void cardInsertedToUI(String globalId) {
@@ -610,6 +1480,19 @@ public class CMHomeApiManager {
     public interface ICMHomeApiUpdateListener {
         public boolean onCardInsertOrUpdate(String globalId, boolean wasPending);
         public void onCardDelete(String globalId);
+
+        /**
+         * Called instead of {@link #onCardInsertOrUpdate(String, boolean)} and
+         * {@link #onCardDelete(String)} when more than one card changed at once.
+         * @param insertedIds Global IDs of cards that are not yet shown in the UI.
+         * @param updatedIds Global IDs of cards that are shown and have changed.
+         * @param deletedIds Global IDs of cards that were deleted.
+         * @param wasPending Whether any of the changes had been held back until
+         *                   {@link CMHomeApiManager#processPendingUpdates()}.
+         * @return The global IDs of the inserted or updated cards that are now shown in the UI.
+         */
+        public Set<String> onCardsChanged(List<String> insertedIds, List<String> updatedIds,
+                                          List<String> deletedIds, boolean wasPending);
     }
 
     /**
@@ -626,7 +1509,12 @@ public class CMHomeApiManager {
 
         @Override
         public void run() {
-            loadExtensionAndCardsForPackageIfSupported(mPackageName, mNotifyListeners);
+            beginChangeBatch();
+            try {
+                loadExtensionAndCardsForPackageIfSupported(mPackageName, mNotifyListeners);
+            } finally {
+                endChangeBatch();
+            }
             sendRefreshBroadcast(mPackageName);
         }
     }
@@ -667,7 +1555,12 @@ public class CMHomeApiManager {
 
         @Override
         public void run() {
-            removeAllCardsForPackage(mPackageName);
+            beginChangeBatch();
+            try {
+                removeAllCardsForPackage(mPackageName);
+            } finally {
+                endChangeBatch();
+            }
         }
     }
 
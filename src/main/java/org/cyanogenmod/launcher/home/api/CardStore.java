@@ -0,0 +1,172 @@
+package org.cyanogenmod.launcher.home.api;
+
+import android.util.LongSparseArray;
+import org.cyanogenmod.launcher.home.api.cards.CardData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores the cards of all CM Home API providers. All changes must be made from a single writer
+ * thread. Each change publishes a new immutable {@link Version} of the store, so that any
+ * thread can read a consistent view of all cards without locking.
+ *
+ * Neither the stored LongSparseArrays nor the stored CardData instances may be modified once
+ * they have been passed to this store, as readers may hold on to them. To change a card, store
+ * a new or copied instance instead.
+ */
+class CardStore {
+    private volatile Version mVersion = new Version(0,
+            new HashMap<String, LongSparseArray<CardData>>());
+
+    /**
+     * Retrieves the most recently published version of the store.
+     * @return The current Version, which will never change.
+     */
+    public Version getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Stores a card, replacing any card of the same provider with the same id.
+     * @param authority The authority of the provider of the card.
+     * @param card The card to store.
+     */
+    public void putCard(String authority, CardData card) {
+        LongSparseArray<CardData> oldCards = mVersion.getCards(authority);
+        LongSparseArray<CardData> cards = oldCards != null ? oldCards.clone()
+                                                           : new LongSparseArray<CardData>();
+        cards.put(card.getId(), card);
+        putCards(authority, cards);
+    }
+
+    /**
+     * Replaces all cards of a provider.
+     * @param authority The authority of the provider.
+     * @param cards Card ID -> CardData. Must not be modified after this call.
+     */
+    public void putCards(String authority, LongSparseArray<CardData> cards) {
+        // LongSparseArray compacts itself lazily, even on reads, so compact it while it is
+        // still only visible to the writer.
+        cards.size();
+
+        HashMap<String, LongSparseArray<CardData>> allCards =
+                new HashMap<String, LongSparseArray<CardData>>(mVersion.mCards);
+        allCards.put(authority, cards);
+        publish(allCards);
+    }
+
+    /**
+     * Removes a single card, if it is stored.
+     * @param authority The authority of the provider of the card.
+     * @param cardId The id of the card to remove.
+     */
+    public void removeCard(String authority, long cardId) {
+        LongSparseArray<CardData> oldCards = mVersion.getCards(authority);
+        if (oldCards == null || oldCards.get(cardId) == null) {
+            return;
+        }
+
+        LongSparseArray<CardData> cards = oldCards.clone();
+        cards.remove(cardId);
+        putCards(authority, cards);
+    }
+
+    /**
+     * Removes all cards of a provider, along with the provider itself.
+     * @param authority The authority of the provider to remove.
+     */
+    public void removeCards(String authority) {
+        if (!mVersion.hasProvider(authority)) {
+            return;
+        }
+
+        HashMap<String, LongSparseArray<CardData>> allCards =
+                new HashMap<String, LongSparseArray<CardData>>(mVersion.mCards);
+        allCards.remove(authority);
+        publish(allCards);
+    }
+
+    private void publish(HashMap<String, LongSparseArray<CardData>> allCards) {
+        mVersion = new Version(mVersion.getNumber() + 1, allCards);
+    }
+
+    /**
+     * An immutable view of all stored cards, as they were when it was published.
+     */
+    public static final class Version {
+        private final long                                       mNumber;
+        // Provider authority string -> SparseArray from card ID -> CardData
+        private final Map<String, LongSparseArray<CardData>>     mCards;
+        // Created on first use, as most versions are replaced before anyone lists all cards.
+        private volatile List<CardData>                          mAllCards;
+
+        private Version(long number, HashMap<String, LongSparseArray<CardData>> cards) {
+            mNumber = number;
+            mCards = Collections.unmodifiableMap(cards);
+        }
+
+        /**
+         * Retrieves the number of this version, which increases with every change to the store.
+         * @return The version number.
+         */
+        public long getNumber() {
+            return mNumber;
+        }
+
+        public boolean hasProvider(String authority) {
+            return mCards.containsKey(authority);
+        }
+
+        public Set<String> getProviders() {
+            return mCards.keySet();
+        }
+
+        /**
+         * Retrieves all cards of a provider.
+         * @param authority The authority of the provider.
+         * @return Card ID -> CardData, which must not be modified, or null if the provider has
+         *         no cards stored.
+         */
+        public LongSparseArray<CardData> getCards(String authority) {
+            return mCards.get(authority);
+        }
+
+        public CardData getCard(String authority, long cardId) {
+            LongSparseArray<CardData> cards = mCards.get(authority);
+            return cards != null ? cards.get(cardId) : null;
+        }
+
+        /**
+         * Retrieves all cards of all providers.
+         * @return Provider authority string -> SparseArray from card ID -> CardData, none of
+         *         which may be modified.
+         */
+        public Map<String, LongSparseArray<CardData>> getAllCardsByProvider() {
+            return mCards;
+        }
+
+        /**
+         * Retrieves all cards of all providers as a single list.
+         * @return An unmodifiable list of all cards.
+         */
+        public List<CardData> getAllCards() {
+            List<CardData> allCards = mAllCards;
+            if (allCards == null) {
+                ArrayList<CardData> cardList = new ArrayList<CardData>();
+                for (LongSparseArray<CardData> cards : mCards.values()) {
+                    for (int i = 0; i < cards.size(); i++) {
+                        cardList.add(cards.valueAt(i));
+                    }
+                }
+                allCards = Collections.unmodifiableList(cardList);
+                mAllCards = allCards;
+            }
+            return allCards;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.cyanogenmod.launcher.home.api;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.LongSparseArray;
+import org.cyanogenmod.launcher.home.api.cards.CardData;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A snapshot of all cards loaded from CM Home API providers, along with the change token and
+ * database id of each provider. The snapshot is persisted so that cards can be shown as soon as
+ * CM Home starts, before any provider has been queried.
+ */
+class CardStoreSnapshot {
+    private static final String TAG       = "CardStoreSnapshot";
+    private static final String FILE_NAME = "cmhome_api_cards.snapshot";
+    // Increment whenever the format written by write() changes, including the format of
+    // CardData#writeToStream and CardDataImage#writeToStream.
+    private static final int    VERSION   = 3;
+
+    // Provider authority string -> SparseArray from card ID -> CardData
+    private final HashMap<String, LongSparseArray<CardData>> mCards;
+    // Provider authority string -> change token, for providers that support the change log
+    private final HashMap<String, Long> mChangeTokens;
+    // Provider authority string -> id of the database the change token belongs to
+    private final HashMap<String, Long> mDatabaseIds;
+
+    private CardStoreSnapshot(HashMap<String, LongSparseArray<CardData>> cards,
+                              HashMap<String, Long> changeTokens,
+                              HashMap<String, Long> databaseIds) {
+        mCards = cards;
+        mChangeTokens = changeTokens;
+        mDatabaseIds = databaseIds;
+    }
+
+    public HashMap<String, LongSparseArray<CardData>> getCards() {
+        return mCards;
+    }
+
+    public HashMap<String, Long> getChangeTokens() {
+        return mChangeTokens;
+    }
+
+    public HashMap<String, Long> getDatabaseIds() {
+        return mDatabaseIds;
+    }
+
+    private static AtomicFile getFile(Context context) {
+        return new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * Reads the last snapshot written.
+     * @param context A Context to locate the snapshot file.
+     * @return The snapshot, or null if there is none or it cannot be read.
+     */
+    public static CardStoreSnapshot read(Context context) {
+        AtomicFile file = getFile(context);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(file.openRead()));
+            if (in.readInt() != VERSION) {
+                Log.i(TAG, "Ignoring card snapshot written in an older format.");
+                return null;
+            }
+
+            int providerCount = in.readInt();
+            HashMap<String, LongSparseArray<CardData>> cards =
+                    new HashMap<String, LongSparseArray<CardData>>(providerCount);
+            HashMap<String, Long> changeTokens = new HashMap<String, Long>(providerCount);
+            HashMap<String, Long> databaseIds = new HashMap<String, Long>(providerCount);
+            for (int i = 0; i < providerCount; i++) {
+                String authority = in.readUTF();
+                if (in.readBoolean()) {
+                    changeTokens.put(authority, in.readLong());
+                }
+                if (in.readBoolean()) {
+                    databaseIds.put(authority, in.readLong());
+                }
+
+                int cardCount = in.readInt();
+                LongSparseArray<CardData> providerCards = new LongSparseArray<CardData>(cardCount);
+                for (int j = 0; j < cardCount; j++) {
+                    CardData card = CardData.readFromStream(in, authority);
+                    providerCards.put(card.getId(), card);
+                }
+                cards.put(authority, providerCards);
+            }
+            return new CardStoreSnapshot(cards, changeTokens, databaseIds);
+        } catch (FileNotFoundException e) {
+            // No snapshot has been written yet
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read card snapshot, discarding it.", e);
+            file.delete();
+        } catch (RuntimeException e) {
+            // A corrupt file can fail in many ways while parsing
+            Log.w(TAG, "Invalid card snapshot, discarding it.", e);
+            file.delete();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing left to do with this file
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the persisted snapshot with the given cards and change tokens. The snapshot is
+     * replaced atomically, a failed write leaves the previous snapshot in place.
+     * @param context A Context to locate the snapshot file.
+     * @param cards Provider authority string -> SparseArray from card ID -> CardData
+     * @param changeTokens Provider authority string -> change token of the given cards
+     * @param databaseIds Provider authority string -> id of the database of the change token
+     */
+    public static void write(Context context, Map<String, LongSparseArray<CardData>> cards,
+                             Map<String, Long> changeTokens, Map<String, Long> databaseIds) {
+        AtomicFile file = getFile(context);
+        FileOutputStream fileOut = null;
+        try {
+            fileOut = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(VERSION);
+            out.writeInt(cards.size());
+            for (Map.Entry<String, LongSparseArray<CardData>> entry : cards.entrySet()) {
+                String authority = entry.getKey();
+                out.writeUTF(authority);
+                Long changeToken = changeTokens.get(authority);
+                out.writeBoolean(changeToken != null);
+                if (changeToken != null) {
+                    out.writeLong(changeToken);
+                }
+                Long databaseId = databaseIds.get(authority);
+                out.writeBoolean(databaseId != null);
+                if (databaseId != null) {
+                    out.writeLong(databaseId);
+                }
+
+                LongSparseArray<CardData> providerCards = entry.getValue();
+                out.writeInt(providerCards.size());
+                for (int i = 0; i < providerCards.size(); i++) {
+                    providerCards.valueAt(i).writeToStream(out);
+                }
+            }
+            out.flush();
+            file.finishWrite(fileOut);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write card snapshot.", e);
+            if (fileOut != null) {
+                file.failWrite(fileOut);
+            }
+        }
+    }
+}